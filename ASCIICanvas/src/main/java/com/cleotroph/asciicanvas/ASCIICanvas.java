@@ -2,68 +2,136 @@ package com.cleotroph.asciicanvas;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Class to be extended by user. Includes abstract methods for ticking, rendering, and key events.
+ * Class to be extended by user. Includes abstract methods for ticking, rendering, and key events. Key events are
+ * queued as they arrive and delivered on the tick thread right before the next tick, so game state is only ever
+ * touched by one thread. Poll them with {@link #isKeyDown} and friends, or handle them in the {@link KeyListener}
+ * methods.
  */
 public abstract class ASCIICanvas implements KeyListener {
-    // manager reference
+    // manager reference, null when running on a custom backend
     private ASCIICanvasManager cManager;
+    private ASCIICanvasManager.ScreenBuffer screenBuffer;
 
     // canvas dimensions
     public int height;
     public int width;
 
-    // References to buffers, must be refreshed every swap
-    private char[] chars;
-    private int[] colors;
+    // Frame currently being drawn into, handed back by the screen buffer on every publish
+    private CellFrame writeFrame;
 
-    // current draw state
+    // where draw calls go, the write frame or the plane of the layer selected with drawTo
+    private CellFrame target;
+    private Layer targetLayer;
+
+    // layers composited under every frame, null until the first layer is added
+    private LayerStack layers;
+
+    // current draw state, and the packed cell it produces
     private int color;
     private char brush;
+    private int background = Cell.NO_BACKGROUND;
+    private int attributes;
+    private long brushCell;
 
-    // sequencing threads
-    private RenderThread renderThread;
-    private TickThread tickThread;
+    // sequencing, runs ticks and renders on one thread
+    private Scheduler scheduler;
 
-    /**
-     * Initialize the game with a default prelauncher.
-     * @param name Window name.
-     */
-    public ASCIICanvas(String name){
-        final Frame frame = new Frame(name);
+    // shared runtime stepping the scheduler when started on one, and this canvas in its queue
+    private CanvasRuntime runtime;
+    private CanvasRuntime.Hosted hosted;
 
-        PreLauncher preLauncher = new PreLauncher(name);
+    // simulation driving ticks against a virtual clock when fast forwarding, null otherwise
+    private Simulation simulation;
 
-        cManager = new ASCIICanvasManager(preLauncher.width, preLauncher.height, preLauncher.cx, preLauncher.cy, preLauncher.size, this, frame);
+    // set when there is no presenter thread, frames are presented on the game thread as they are published
+    private boolean presentInline;
 
-        frame.setBackground(new Color(0));
+    // set while a scheduler or runtime publishes frames, snapshots are taken with the next frame only while it is set
+    private volatile boolean publishing;
 
-        if(preLauncher.fullScreen){
-            frame.setSize(preLauncher.width, preLauncher.height);
-            frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
-            frame.setUndecorated(true);
-            frame.setLocationRelativeTo(null);
-            frame.setVisible(true);
-            frame.add(cManager);
-        }else{
-            frame.add(cManager);
-            frame.pack();
-            frame.setLocationRelativeTo(null);
-            frame.setResizable(true);
-            frame.setSize(preLauncher.width, preLauncher.height);
-            frame.setVisible(true);
+    // set by exit, no frame is published after it, also when a simulation keeps calling onRender
+    private volatile boolean exited;
+
+    // Key events queued by the AWT event thread and the key state built from them on the tick thread
+    private static final int INPUT_CAPACITY = 1024;
+    private final InputQueue input = new InputQueue(INPUT_CAPACITY);
+    private final KeyState keys = new KeyState(INPUT_CAPACITY);
+    private final InputQueue.Sink inputSink = this::onInput;
+    private volatile boolean legacyKeyEvents = true;
+    // time of the drain in progress, read at the first event of a drain since nanoTime may be any value, and the
+    // source of rebuilt legacy events when there is no window
+    private long drainNanos;
+    private boolean drainStamped;
+    private Component keySource;
+
+    // registered with the window instead of this canvas, only queues events
+    private final KeyListener inputListener = new KeyListener() {
+        @Override
+        public void keyTyped(KeyEvent e) {
+            postKeyEvent(KeyEvent.KEY_TYPED, e.getKeyCode(), e.getKeyChar(), e.getModifiersEx());
         }
 
+        @Override
+        public void keyPressed(KeyEvent e) {
+            postKeyEvent(KeyEvent.KEY_PRESSED, e.getKeyCode(), e.getKeyChar(), e.getModifiersEx());
+        }
 
-        cManager.addKeyListener(this);
-        height = cManager.screenBuffer.getHeight();
-        width = cManager.screenBuffer.getWidth();
-        color = 0;
-        brush = ' ';
-        renderThread = new RenderThread(this);
-        tickThread = new TickThread(this);
+        @Override
+        public void keyReleased(KeyEvent e) {
+            postKeyEvent(KeyEvent.KEY_RELEASED, e.getKeyCode(), e.getKeyChar(), e.getModifiersEx());
+        }
+    };
+
+    // barrier of renderParallel, regions still being drawn and the thread waiting for them
+    private final AtomicInteger regionsPending = new AtomicInteger();
+    private volatile Thread regionWaiter;
+
+    // list draw calls are recorded into instead of drawn, null when not recording
+    private DisplayList recording;
+
+    // timing instrumentation
+    private final Metrics metrics = new Metrics();
+
+    // session recording, handed every frame just before it is published, null when not recording
+    private volatile SessionRecorder sessionRecorder;
+
+    // streaming server, handed every frame just before it is published, null when not streaming
+    private volatile StreamServer streamServer;
+
+    // Snapshots: the writer, created on first use, a one off request taken with the next frame, and the autosave file
+    // with its interval and next deadline
+    private static final long SNAPSHOT_TIMEOUT_MILLIS = 5000;
+    private volatile SnapshotWriter snapshotWriter;
+    private final AtomicReference<Path> snapshotRequest = new AtomicReference<>();
+    private volatile Path autosaveFile;
+    private volatile long autosaveNanos;
+    private volatile long nextAutosave;
+
+    // warms up the backend and registers the metrics while load() runs, null before start
+    private Thread warmUp;
+
+    /**
+     * Initialize the game with the launch config given in system properties, see {@link LaunchConfig}, or with a
+     * default prelauncher when none is given.
+     * @param name Window name.
+     */
+    public ASCIICanvas(String name){
+        this(launchConfig(name), name);
     }
 
     /**
@@ -72,14 +140,23 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param name Window name.
      */
     public ASCIICanvas(PreLauncher preLauncher, String name){
+        this(preLauncher.config(), name);
+    }
+
+    /**
+     * Initialize the game in a window without showing a prelauncher.
+     * @param config window and grid settings.
+     * @param name Window name.
+     */
+    public ASCIICanvas(LaunchConfig config, String name){
         final Frame frame = new Frame(name);
 
-        cManager = new ASCIICanvasManager(preLauncher.width, preLauncher.height, preLauncher.cx, preLauncher.cy, preLauncher.size, this, frame);
+        cManager = new ASCIICanvasManager(config.width, config.height, config.cx, config.cy, config.size, this, frame);
 
         frame.setBackground(new Color(0));
 
-        if(preLauncher.fullScreen){
-            frame.setSize(preLauncher.width, preLauncher.height);
+        if(config.fullScreen){
+            frame.setSize(config.width, config.height);
             frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
             frame.setUndecorated(true);
             frame.setLocationRelativeTo(null);
@@ -90,18 +167,27 @@ public abstract class ASCIICanvas implements KeyListener {
             frame.pack();
             frame.setLocationRelativeTo(null);
             frame.setResizable(true);
-            frame.setSize(preLauncher.width, preLauncher.height);
+            frame.setSize(config.width, config.height);
             frame.setVisible(true);
         }
 
 
-        cManager.addKeyListener(this);
-        height = cManager.screenBuffer.getHeight();
-        width = cManager.screenBuffer.getWidth();
+        cManager.addKeyListener(inputListener);
+        screenBuffer = cManager.screenBuffer;
+        height = screenBuffer.getHeight();
+        width = screenBuffer.getWidth();
+        writeFrame = screenBuffer.getWriteFrame();
+        target = writeFrame;
         color = 0;
-        brush = ' ';
-        renderThread = new RenderThread(this);
-        tickThread = new TickThread(this);
+        setBrush(' ');
+        scheduler = new Scheduler(this::onTick, this::onRender, metrics);
+        screenBuffer.setMetrics(metrics);
+    }
+
+    // Settings from system properties, otherwise the ones picked in a prelauncher
+    private static LaunchConfig launchConfig(String name){
+        LaunchConfig config = LaunchConfig.fromSystemProperties();
+        return config != null ? config : new PreLauncher(name).config();
     }
 
     /**
@@ -115,46 +201,350 @@ public abstract class ASCIICanvas implements KeyListener {
      */
     public ASCIICanvas(int x, int y, int cx, int cy, int size, Frame frame){
         cManager = new ASCIICanvasManager(x, y, cx, cy, size, this, frame);
-        cManager.addKeyListener(this);
-        height = cManager.screenBuffer.getHeight();
-        width = cManager.screenBuffer.getWidth();
+        cManager.addKeyListener(inputListener);
+        screenBuffer = cManager.screenBuffer;
+        height = screenBuffer.getHeight();
+        width = screenBuffer.getWidth();
+        writeFrame = screenBuffer.getWriteFrame();
+        target = writeFrame;
+        color = 0;
+        setBrush(' ');
+        scheduler = new Scheduler(this::onTick, this::onRender, metrics);
+        screenBuffer.setMetrics(metrics);
+    }
+
+    /**
+     * Initialize the component on a custom render backend, no window is created. Use an {@link ImageBackend} to run
+     * headless.
+     * @param cx character width
+     * @param cy character height
+     * @param backend where frames are presented.
+     */
+    public ASCIICanvas(int cx, int cy, RenderBackend backend){
+        screenBuffer = new ASCIICanvasManager.ScreenBuffer(cx, cy, backend);
+        height = screenBuffer.getHeight();
+        width = screenBuffer.getWidth();
+        writeFrame = screenBuffer.getWriteFrame();
+        target = writeFrame;
         color = 0;
-        brush = ' ';
-        renderThread = new RenderThread(this);
-        tickThread = new TickThread(this);
+        setBrush(' ');
+        scheduler = new Scheduler(this::onTick, this::onRender, metrics);
+        screenBuffer.setMetrics(metrics);
     }
 
     /**
      * Called to start rendering + ticking
      */
     public void start(){
+        loadAndWarmUp();
+        screenBuffer.start();
+        publishing = true;
+        scheduler.start("ASCIICanvas scheduler");
+    }
+
+    /**
+     * Starts rendering + ticking on a runtime shared with other canvases instead of threads of its own. Frames are
+     * presented on the runtime worker right after they are rendered. Only canvases on a custom backend can be hosted,
+     * {@link #exit()} then stops just this canvas.
+     * @param runtime runtime to run on.
+     */
+    public void start(CanvasRuntime runtime){
+        if (cManager != null) {
+            throw new IllegalStateException("only canvases on a custom backend can run on a shared runtime");
+        }
+        loadAndWarmUp();
+        // set before the first step can run on a worker
+        this.runtime = runtime;
+        presentInline = true;
+        publishing = true;
+        hosted = new CanvasRuntime.Hosted(this);
+        runtime.host(hosted);
+    }
+
+    /**
+     * @return the exception a tick or render threw on a shared runtime, which stopped this canvas. Null if it has not
+     * failed.
+     */
+    public RuntimeException getFailure(){
+        CanvasRuntime.Hosted h = hosted;
+        return h == null ? null : h.failure;
+    }
+
+    // Loads the canvas for a simulation, which then calls onTick and onRender itself
+    void startSimulation(Simulation simulation){
+        if (cManager != null) {
+            throw new IllegalStateException("only canvases on a custom backend can be simulated");
+        }
+        this.simulation = simulation;
+        presentInline = true;
+        loadAndWarmUp();
+    }
+
+    /**
+     * Current time of the game clock, use it in tick() in place of {@link System#nanoTime()} so the game also runs
+     * correctly in a {@link Simulation}, where the clock advances one tick period per tick.
+     * @return nanoseconds, only meaningful as the difference between two calls.
+     */
+    public long nanoTime(){
+        Simulation s = simulation;
+        return s == null ? System.nanoTime() : s.getVirtualNanos();
+    }
+
+    // Runs load() while the backend warms up on another thread, so fonts, glyphs and buffers are ready for the first
+    // frame. Returns once both are done, timing both and starting the time to first frame.
+    private void loadAndWarmUp(){
+        long started = System.nanoTime();
+        metrics.recordStart(started);
+        String name = getClass().getSimpleName();
+        CountDownLatch warm = new CountDownLatch(1);
+        warmUp = new Thread(() -> {
+            try {
+                screenBuffer.warmUp();
+            } finally {
+                warm.countDown();
+            }
+            // not waited for, starting the MBean server takes a few hundred milliseconds
+            metrics.register(name.isEmpty() ? "ASCIICanvas" : name);
+        }, "ASCIICanvas warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
         load();
-        cManager.start();
-        renderThread.start();
-        tickThread.start();
+        metrics.recordLoad(System.nanoTime() - started);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                warm.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    // Called every frame after the canvas is drawn to. Swaps the buffer and refreshes buffer references.
+    // Called every frame after the canvas is drawn to. Publishes the frame and takes the next one to draw into.
     private void onFrame(){
-        cManager.screenBuffer.swapBuffer();
-        chars = cManager.screenBuffer.getCharBuffer();
-        colors = cManager.screenBuffer.getColorBuffer();
+        if (exited) {
+            // the outputs are closed and the backend may be shut down
+            return;
+        }
+        CellFrame carried = null;
+        if (layers != null) {
+            if (screenBuffer.isRetainingFrame()) {
+                // the next frame starts from what the game drew, without the composite that may change under it
+                carried = layers.carry(writeFrame);
+            }
+            layers.compose(writeFrame);
+        }
+        if (snapshotRequest.get() != null || autosaveFile != null) {
+            takeSnapshots();
+        }
+        SessionRecorder r = sessionRecorder;
+        if (r != null) {
+            r.capture(writeFrame, screenBuffer.getColors());
+        }
+        StreamServer s = streamServer;
+        if (s != null) {
+            s.capture(writeFrame, screenBuffer.getColors());
+        }
+        writeFrame = screenBuffer.publish(carried);
+        if (targetLayer == null) {
+            target = writeFrame;
+        }
+        if (presentInline) {
+            // no presenter thread on a shared runtime or in a simulation
+            screenBuffer.Render();
+        }
     }
 
-    private void onRender(){
-        onFrame();
+    // Captures a requested snapshot and the autosave if it is due, on the game thread
+    private void takeSnapshots(){
+        Path file = snapshotRequest.getAndSet(null);
+        if (file != null) {
+            snapshotWriter.capture(file, writeFrame, screenBuffer.getColors(), snapshotState());
+        }
+        Path auto = autosaveFile;
+        long now = System.nanoTime();
+        if (auto != null && now - nextAutosave >= 0) {
+            nextAutosave = now + autosaveNanos;
+            snapshotWriter.capture(auto, writeFrame, screenBuffer.getColors(), snapshotState());
+        }
+    }
+
+    // Renders and publishes a frame, called by the scheduler or a simulation
+    void onRender(){
         render();
+        onFrame();
     }
 
-    private void onTick(){
+    // Applies the queued key events and ticks, called by the scheduler or a simulation
+    void onTick(){
+        keys.beginTick();
+        drainStamped = false;
+        input.drain(inputSink);
         tick();
     }
 
+    // Applies one queued key event, on the tick thread
+    private void onInput(long nanos, long packed){
+        if (!drainStamped) {
+            // only read the clock for ticks that have events
+            drainNanos = System.nanoTime();
+            drainStamped = true;
+        }
+        Metrics m = metrics;
+        if (m.enabled) {
+            m.recordInput(drainNanos - nanos);
+        }
+        keys.apply(packed);
+        if (legacyKeyEvents) {
+            int type = InputQueue.typeOf(packed);
+            int id = type == InputQueue.PRESSED ? KeyEvent.KEY_PRESSED
+                    : type == InputQueue.RELEASED ? KeyEvent.KEY_RELEASED : KeyEvent.KEY_TYPED;
+            if (keySource == null) {
+                keySource = cManager != null ? cManager : new Canvas();
+            }
+            long when = System.currentTimeMillis() - (drainNanos - nanos) / 1_000_000;
+            KeyEvent e = new KeyEvent(keySource, id, when, InputQueue.modifiersOf(packed),
+                    InputQueue.keyCodeOf(packed), InputQueue.keyCharOf(packed));
+            if (id == KeyEvent.KEY_PRESSED) {
+                keyPressed(e);
+            } else if (id == KeyEvent.KEY_RELEASED) {
+                keyReleased(e);
+            } else {
+                keyTyped(e);
+            }
+        }
+    }
+
+    /**
+     * Queues a key event as if it came from the window, for canvases on a custom backend and for tests. Events are
+     * applied before the next tick. Only call it from one thread at a time, the AWT event thread when there is a
+     * window.
+     * @param id {@link KeyEvent#KEY_PRESSED}, {@link KeyEvent#KEY_RELEASED} or {@link KeyEvent#KEY_TYPED}.
+     * @param keyCode key code, {@link KeyEvent#VK_UNDEFINED} for typed events.
+     * @param keyChar char of the key, {@link KeyEvent#CHAR_UNDEFINED} if none.
+     * @param modifiers extended modifiers, see {@link KeyEvent#getModifiersEx()}.
+     * @return false if the queue was full and the event was dropped.
+     */
+    public boolean postKeyEvent(int id, int keyCode, char keyChar, int modifiers){
+        int type = id == KeyEvent.KEY_PRESSED ? InputQueue.PRESSED
+                : id == KeyEvent.KEY_RELEASED ? InputQueue.RELEASED : InputQueue.TYPED;
+        return input.offer(InputQueue.pack(type, keyCode, keyChar, modifiers));
+    }
+
+    /**
+     * Call from tick() or render().
+     * @param keyCode key code, such as {@link KeyEvent#VK_SPACE}.
+     * @return true if the key is held down.
+     */
+    public boolean isKeyDown(int keyCode){
+        return keys.isDown(keyCode);
+    }
+
+    /**
+     * Call from tick() or render(). A key pressed and released between two ticks still counts as pressed.
+     * @param keyCode key code, such as {@link KeyEvent#VK_SPACE}.
+     * @return true if the key was pressed since the previous tick.
+     */
+    public boolean wasKeyPressed(int keyCode){
+        return keys.wasPressed(keyCode);
+    }
+
+    /**
+     * Call from tick() or render().
+     * @param keyCode key code, such as {@link KeyEvent#VK_SPACE}.
+     * @return true if the key was released since the previous tick.
+     */
+    public boolean wasKeyReleased(int keyCode){
+        return keys.wasReleased(keyCode);
+    }
+
+    /**
+     * Call from tick() or render(), the sequence is reused and only valid until the next tick.
+     * @return chars typed since the previous tick.
+     */
+    public CharSequence getTypedChars(){
+        return keys.typed();
+    }
+
+    /**
+     * Sets whether queued key events are also handed to keyPressed, keyReleased and keyTyped, on the tick thread right
+     * before tick(). On by default, turn it off when only polling to save rebuilding the events.
+     * @param enabled false to only update the polled key state.
+     */
+    public void setLegacyKeyEvents(boolean enabled){
+        legacyKeyEvents = enabled;
+    }
+
     /**
-     * Called to stop the program/element safely.
+     * @return key events dropped because more arrived between two ticks than the queue holds.
+     */
+    public long getDroppedKeyEvents(){
+        return input.getDropped();
+    }
+
+    /**
+     * Called to stop the program/element safely. Once the game has stopped save() runs, snapshots taken in it are
+     * written right away, and when autosaving a last snapshot is taken. Failures of the recording and the snapshots
+     * are kept in {@link SessionRecorder#getError()} and {@link SnapshotWriter#getError()}.
      */
     public void exit(){
-        cManager.stop();
+        if (hosted != null) {
+            runtime.remove(hosted);
+        }
+        // waits for a tick or frame in progress, so save() sees the game at rest
+        scheduler.stop();
+        publishing = false;
+        exited = true;
+        save();
+        // requests no frame will take any more, and the progress since the last autosave
+        SnapshotWriter w = snapshotWriter;
+        if (w != null) {
+            takeSnapshotNow(w, snapshotRequest.getAndSet(null));
+            takeSnapshotNow(w, autosaveFile);
+        }
+        autosaveFile = null;
+        snapshotRequest.set(null);
+        stopOutputs();
+        if(cManager != null){
+            cManager.stop();
+        }else{
+            screenBuffer.shutdown();
+        }
+    }
+
+    // Called by the runtime worker when a step threw, releases what the canvas holds without saving the broken game
+    void stopAfterFailure(){
+        publishing = false;
+        stopOutputs();
+        screenBuffer.shutdown();
+    }
+
+    // Unregisters the metrics and closes the stream, recording and snapshot writer, once the game has stopped
+    private void stopOutputs(){
+        if (warmUp != null) {
+            // the metrics may still be being registered
+            try {
+                warmUp.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        metrics.unregister();
+        stopStreaming();
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            // kept in SessionRecorder.getError
+        }
+        SnapshotWriter w = snapshotWriter;
+        if (w != null) {
+            // a timeout is kept in SnapshotWriter.getError
+            w.close(SNAPSHOT_TIMEOUT_MILLIS);
+        }
     }
 
     /**
@@ -162,7 +552,7 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param rate FPS
      */
     public void frameRate(int rate){
-        renderThread.setTickSpeed(rate);
+        scheduler.setFrameRate(rate);
     }
 
     /**
@@ -170,20 +560,180 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param rate TPS
      */
     public void tickRate(int rate){
-        tickThread.setTickSpeed(rate);
+        scheduler.setTickRate(rate);
+    }
+
+    /**
+     * Set how many ticks may run back to back to catch up when the game falls behind.
+     * @param ticks maximum ticks before a frame is rendered.
+     */
+    public void maxTicksPerFrame(int ticks){
+        scheduler.setMaxTicksPerFrame(ticks);
+    }
+
+    /**
+     * @return the scheduler driving this canvas, for frame timing and jitter stats.
+     */
+    public Scheduler getScheduler(){
+        return scheduler;
+    }
+
+    /**
+     * @return render, present, tick, lateness and input histograms of this canvas, also registered as a JMX MBean on
+     * start.
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Shows the p50, p99 and max frame timings in the top right corner of the canvas, drawn over a copy of every frame
+     * as it is presented. Recordings, streams, snapshots and frames kept with syncBuffer() never contain the overlay.
+     * @param show true to draw the overlay.
+     */
+    public void showMetricsOverlay(boolean show){
+        screenBuffer.setOverlay(show ? new MetricsOverlay() : null);
+    }
+
+    /**
+     * Starts recording every published frame to a file, replacing any recording in progress. Frames are copied on the
+     * render thread and encoded and written on a background thread, play the file back with a {@link SessionPlayer}.
+     * @param file file to record to, replaced if it exists.
+     * @return the recorder, for its encode and drop stats.
+     * @throws IOException if the file cannot be created.
+     */
+    public SessionRecorder startRecording(Path file) throws IOException {
+        stopRecording();
+        SessionRecorder r = new SessionRecorder(file, width, height, 120);
+        sessionRecorder = r;
+        return r;
+    }
+
+    /**
+     * Stops recording and waits for the queued frames to be written. Does nothing when not recording.
+     * @throws IOException if writing the recording failed.
+     */
+    public void stopRecording() throws IOException {
+        SessionRecorder r = sessionRecorder;
+        if (r != null) {
+            sessionRecorder = null;
+            r.close();
+        }
+    }
+
+    /**
+     * Starts streaming every published frame to viewers connecting on a port, replacing any stream in progress. The
+     * render thread only copies each frame, encoding and sending happen on the server thread. Watch with a
+     * {@link StreamClient}.
+     * @param port port to listen on, 0 picks a free one.
+     * @return the server, for its port and stats.
+     * @throws IOException if the port cannot be bound.
+     */
+    public StreamServer startStreaming(int port) throws IOException {
+        stopStreaming();
+        StreamServer s = new StreamServer(new InetSocketAddress(port), width, height);
+        streamServer = s;
+        return s;
+    }
+
+    /**
+     * Stops streaming and disconnects every viewer. Does nothing when not streaming.
+     */
+    public void stopStreaming() {
+        StreamServer s = streamServer;
+        if (s != null) {
+            streamServer = null;
+            s.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the canvas and of {@link #snapshotState()} to a file. While the game runs it is taken when
+     * the next frame is published. Otherwise, such as before start, in save() on exit or in a {@link Simulation}, it
+     * is taken right away from the last published frame. The file is written on a background thread and replaced in
+     * one atomic step, load it with a {@link Snapshot}.
+     * @param file file to write, replaced if it exists.
+     * @return the writer, to wait for the write with {@link SnapshotWriter#awaitWrites}.
+     * @throws IllegalStateException if the canvas has exited.
+     */
+    public SnapshotWriter snapshot(Path file){
+        SnapshotWriter w = snapshotWriter();
+        if (w.isClosed()) {
+            throw new IllegalStateException("the canvas has exited");
+        }
+        snapshotRequest.set(file);
+        if (!publishing) {
+            // no frame is coming to take it with, taken here unless exit already took it
+            takeSnapshotNow(w, snapshotRequest.getAndSet(null));
+        }
+        return w;
+    }
+
+    /**
+     * Writes a snapshot like {@link #snapshot} every interval while the game runs, replacing the previous one.
+     * {@link #exit()} takes a last one after save() and waits up to 5 seconds for it to be written.
+     * @param file file to write, null to stop autosaving.
+     * @param intervalMillis time between snapshots in milliseconds.
+     * @return the writer, for its stats.
+     */
+    public SnapshotWriter autosave(Path file, long intervalMillis){
+        SnapshotWriter w = snapshotWriter();
+        autosaveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        nextAutosave = System.nanoTime() + autosaveNanos;
+        autosaveFile = file;
+        return w;
+    }
+
+    // Captures a snapshot of the last published frame, waiting for the writer if it is behind. Only used while no
+    // frames are published, the game is not running then.
+    private synchronized void takeSnapshotNow(SnapshotWriter w, Path file){
+        if (file == null) {
+            return;
+        }
+        CellFrame frame = screenBuffer.getPublishedFrame();
+        w.capture(file, frame != null ? frame : writeFrame, screenBuffer.getColors(), snapshotState(),
+                SNAPSHOT_TIMEOUT_MILLIS);
+    }
+
+    private synchronized SnapshotWriter snapshotWriter(){
+        if (snapshotWriter == null) {
+            snapshotWriter = new SnapshotWriter(width, height);
+        }
+        return snapshotWriter;
+    }
+
+    /**
+     * Game state stored with every snapshot. Called on the game thread when a snapshot is taken, override it to return
+     * the state in any format. The remaining bytes of the buffer are copied right away, so it can be reused.
+     * @return state to store, null for none.
+     */
+    public ByteBuffer snapshotState(){
+        return null;
+    }
+
+    /**
+     * Replaces the canvas and palette with those of a snapshot, read the game state from {@link Snapshot#getState()}.
+     * Call from load(), or from render() in place of drawing the frame.
+     * @param snapshot snapshot of a canvas of the same size.
+     */
+    public void restoreSnapshot(Snapshot snapshot){
+        if (snapshot.getWidth() != width || snapshot.getHeight() != height) {
+            throw new IllegalArgumentException("snapshot is " + snapshot.getWidth() + "x" + snapshot.getHeight()
+                    + ", the canvas " + width + "x" + height);
+        }
+        screenBuffer.overwriteColors(snapshot.getPalette());
+        snapshot.readFrame(writeFrame);
     }
 
     //--------------------------- Draw Functions ------------------------------
 
     /**
-     * <h1>try to avoid using this.</h1>
      * syncs buffers for when clear is not being called every frame.
-     * should be used if there is any movement between frames.
+     * the next frame starts as a copy of this one instead of a recycled older frame.
      * call only at the end of the draw loop.
-     * warning, this is volatile! could cause screen tearing if called often.
      */
     public void syncBuffer(){
-        cManager.screenBuffer.syncBuffer();
+        screenBuffer.syncBuffer();
     }
 
     /**
@@ -191,8 +741,7 @@ public abstract class ASCIICanvas implements KeyListener {
      * Normally this should be called on the start of every frame.
      */
     public void clear(){
-        cManager.screenBuffer.clear();
-        chars = cManager.screenBuffer.getCharBuffer();
+        screenBuffer.clear();
     }
 
     /**
@@ -200,7 +749,67 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param color_in index of color.
      */
     public void setColor(int color_in){
+        if (recording != null) {
+            recording.setColor(color_in);
+            return;
+        }
         color = color_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * set brush background color for draw operations.
+     * @param background_in index of color, or Cell.NO_BACKGROUND to leave the background empty.
+     */
+    public void setBackground(int background_in){
+        if (recording != null) {
+            recording.setBackground(background_in);
+            return;
+        }
+        background = background_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * set brush color for draw operations to any 24 bit color.
+     * @param rgb packed 0xRRGGBB color.
+     * @see #colorIndex(int)
+     */
+    public void setColorRGB(int rgb){
+        setColor(colorIndex(rgb));
+    }
+
+    /**
+     * set brush background color for draw operations to any 24 bit color.
+     * @param rgb packed 0xRRGGBB color.
+     * @see #colorIndex(int)
+     */
+    public void setBackgroundRGB(int rgb){
+        setBackground(colorIndex(rgb));
+    }
+
+    /**
+     * Palette index of a 24 bit color, for setColor, setBackground and sprite colors. Colors not in the palette yet
+     * are appended to it, which is the only time a Color object is created; beyond 65535 colors the closest one is
+     * used. Call from render().
+     * @param rgb packed 0xRRGGBB color.
+     * @return palette index.
+     */
+    public int colorIndex(int rgb){
+        return screenBuffer.internColor(rgb);
+    }
+
+    /**
+     * set brush attributes for draw operations.
+     * @param attributes_in combination of Cell.BOLD and Cell.UNDERLINE, 0 for none.
+     */
+    public void setAttributes(int attributes_in){
+        if (recording != null) {
+            recording.setAttributes(attributes_in);
+            return;
+        }
+        attributes = attributes_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
     }
 
     /**
@@ -208,7 +817,12 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param brush_in character to draw.
      */
     public void setBrush(char brush_in){
+        if (recording != null) {
+            recording.setBrush(brush_in);
+            return;
+        }
         brush = brush_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
     }
 
     /**
@@ -219,18 +833,20 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param vertical orientation of the line, true for vertical, false for horizontal.
      */
     public void line(int x, int y, int l, boolean vertical){
+        if (recording != null) {
+            recording.line(x, y, l, vertical);
+            return;
+        }
         if(vertical){
-            int effectiveL = Math.min(height - 1, y + l) - y;
-            for(int iy = Math.max(0, 0 - y); iy < effectiveL;  iy++){
-                int pos = x + (y + iy) * width;
-                point(pos);
+            if(x < 0 || x >= target.width){
+                return;
             }
+            target.fillColumn(x, Math.max(0, y), Math.min(target.height, y + l), brushCell);
         }else{
-            int effectiveL = Math.min(width - 1, x + l) - x;
-            for(int ix = Math.max(0, 0 - x); ix < effectiveL;  ix++){
-                int pos = (x + ix) + y * width;
-                point(pos);
+            if(y < 0 || y >= target.height){
+                return;
             }
+            target.fillRow(Math.max(0, x), Math.min(target.width, x + l), y, brushCell);
         }
     }
 
@@ -243,15 +859,14 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param filled whether or not the interior is filled (false for only the boarder).
      */
     public void rect(int x, int y, int w, int h, boolean filled){
+        if (recording != null) {
+            recording.rect(x, y, w, h, filled);
+            return;
+        }
         if(filled){
-            int effectiveH = Math.min(height - 1, y + h) - y;
-            int effectiveW = Math.min(width - 1, x + w) - x;
-            for(int iy = Math.max(0, 0 - y); iy < effectiveH; iy++){
-                for(int ix = Math.max(0, 0 - x); ix < effectiveW; ix++){
-                    int pos = ix + (iy + y) * width + x;
-                    point(pos);
-                }
-            }
+            // clipped once, then filled a chunk at a time
+            target.fillRect(Math.max(0, x), Math.max(0, y), Math.min(target.width, x + w),
+                    Math.min(target.height, y + h), brushCell);
         }else{
             line(x, y, w, false);
             line(x, y, h, true);
@@ -266,9 +881,12 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param y y of point.
      */
     public void point(int x, int y){
-        int pos = x + y * width;
-        if(x < width && x >= 0 && y < height && y >= 0) {
-            point(pos);
+        if (recording != null) {
+            recording.point(x, y);
+            return;
+        }
+        if(x < target.width && x >= 0 && y < target.height && y >= 0) {
+            point(target.index(x, y));
         }
     }
 
@@ -277,8 +895,110 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param pos Position in the buffer.
      */
     private void point(int pos){
-        chars[pos] = brush;
-        colors[pos] = color;
+        target.set(pos, brushCell);
+    }
+
+    /**
+     * Draws a string on one row with the brush color, background and attributes, clipped to the canvas.
+     * @param text characters to draw, one cell each.
+     * @param x x of the first character.
+     * @param y y of the row.
+     */
+    public void drawString(String text, int x, int y){
+        if (recording != null) {
+            recording.drawString(text, x, y);
+            return;
+        }
+        if(y < 0 || y >= target.height){
+            return;
+        }
+        int from = Math.max(0, -x);
+        int x1 = Math.min(target.width, x + text.length());
+        if(x + from < x1){
+            target.writeGlyphs(x + from, y, text, from, x1 - x - from, brushCell & ~0xFFFFL);
+        }
+    }
+
+    /**
+     * Draws a sprite of glyphs, each with its own color, using the brush background and attributes.
+     * @param x x of the top left of the sprite.
+     * @param y y of the top left of the sprite.
+     * @param w width of the sprite.
+     * @param h height of the sprite.
+     * @param glyphs w * h characters, row by row.
+     * @param colors w * h color indices, row by row.
+     */
+    public void drawSprite(int x, int y, int w, int h, char[] glyphs, int[] colors){
+        blitSprite(x, y, w, h, glyphs, colors, -1);
+    }
+
+    /**
+     * Draws a sprite of glyphs, each with its own color, using the brush background and attributes. Cells holding the
+     * transparent glyph are left untouched.
+     * @param x x of the top left of the sprite.
+     * @param y y of the top left of the sprite.
+     * @param w width of the sprite.
+     * @param h height of the sprite.
+     * @param glyphs w * h characters, row by row.
+     * @param colors w * h color indices, row by row.
+     * @param transparent glyph that is not drawn.
+     */
+    public void drawSprite(int x, int y, int w, int h, char[] glyphs, int[] colors, char transparent){
+        blitSprite(x, y, w, h, glyphs, colors, transparent);
+    }
+
+    /**
+     * Copies a block of packed cells (see Cell.pack) onto the canvas row by row, empty cells included.
+     * @param x x of the top left of the block.
+     * @param y y of the top left of the block.
+     * @param w width of the block.
+     * @param h height of the block.
+     * @param cells w * h packed cells, row by row.
+     */
+    public void drawCells(int x, int y, int w, int h, long[] cells){
+        requireNotRecording();
+        int from = Math.max(0, -x);
+        int x1 = Math.min(target.width, x + w);
+        int y1 = Math.min(target.height, y + h);
+        if(x + from >= x1){
+            return;
+        }
+        for(int iy = Math.max(0, y); iy < y1; iy++){
+            target.writeCells(x + from, iy, cells, (iy - y) * w + from, x1 - x - from);
+        }
+    }
+
+    // Clips a sprite once and writes it a row at a time, transparent is -1 to draw every glyph
+    private void blitSprite(int x, int y, int w, int h, char[] glyphs, int[] colors, int transparent){
+        requireNotRecording();
+        int from = Math.max(0, -x);
+        int x1 = Math.min(target.width, x + w);
+        int y1 = Math.min(target.height, y + h);
+        if(x + from >= x1){
+            return;
+        }
+        long style = brushCell & ~0xFFFFFFFFL;
+        for(int iy = Math.max(0, y); iy < y1; iy++){
+            target.writeSprite(x + from, iy, glyphs, colors, (iy - y) * w + from, x1 - x - from, style, transparent);
+        }
+    }
+
+    /**
+     * Draws the visible part of a tile map world, clipped to the canvas.
+     * @param viewport view onto the world, its camera picks the part that is shown.
+     * @param x x of the top left of the view on the canvas.
+     * @param y y of the top left of the view on the canvas.
+     */
+    public void drawViewport(Viewport viewport, int x, int y){
+        requireNotRecording();
+        viewport.drawInto(target, x, y);
+    }
+
+    // Sprites, cell blocks and viewports hold too much data to be recorded
+    private void requireNotRecording(){
+        if (recording != null) {
+            throw new IllegalStateException("only shapes and strings can be recorded in a display list");
+        }
     }
 
     /**
@@ -289,92 +1009,208 @@ public abstract class ASCIICanvas implements KeyListener {
      * @param h height of rect.
      */
     public void drawPerimeter(int x, int y, int w, int h){
+        if (recording != null) {
+            recording.drawPerimeter(x, y, w, h);
+            return;
+        }
         // boolean logic to confirm points are in bounds of the canvas
         char brushMemory = brush;
-        brush = '═';
+        setBrush('═');
         line(x, y, w, false);
         line(x, y + (h - 1), w, false);
-        brush = '║';
+        setBrush('║');
         line(x, y, h, true);
         line(x + (w - 1), y, h, true);
-        brush = '╗';
+        setBrush('╗');
         point(x + w - 1, y);
-        brush = '╝';
+        setBrush('╝');
         point(x + w - 1, y + h - 1);
-        brush = '╔';
+        setBrush('╔');
         point(x, y);
-        brush = '╚';
+        setBrush('╚');
         point(x, y + h - 1);
-        brush = brushMemory;
+        setBrush(brushMemory);
     }
 
-    //--------------------------- Sequencing ------------------------------
-
     /**
-     * Called once on init
+     * Starts recording draw calls into a display list instead of drawing them. The list starts with the current
+     * brush, brush changes made while recording only apply to the list.
      */
-    public abstract void load();
+    public void beginDisplayList(){
+        DisplayList list = new DisplayList();
+        list.setColor(color);
+        list.setBackground(background);
+        list.setAttributes(attributes);
+        list.setBrush(brush);
+        recording = list;
+    }
 
     /**
-     * Called once when the window is closed by an in game command
+     * Stops recording and compiles what was recorded.
+     * @return the recorded list, replay it with drawList().
      */
-    public abstract void save();
+    public DisplayList endDisplayList(){
+        DisplayList list = recording;
+        if (list == null) {
+            throw new IllegalStateException("not recording a display list");
+        }
+        recording = null;
+        list.compile();
+        return list;
+    }
 
     /**
-     * Called once per frame, rate can be modified by calling frameRate();
+     * Replays a display list, offset by (x, y) and clipped to the canvas. The brush of the canvas is not changed.
+     * @param list recorded or built display list.
+     * @param x x offset.
+     * @param y y offset.
      */
-    public abstract void render();
+    public void drawList(DisplayList list, int x, int y){
+        requireNotRecording();
+        list.replay(target, x, y);
+    }
+
+    //--------------------------- Parallel drawing ------------------------------
 
     /**
-     * Called once per game tick, rate can be modified by calling tickCap();
+     * Creates a brush and clip region of its own for drawing from another thread, see {@link DrawContext}.
+     * @param x x of the top left of the region.
+     * @param y y of the top left of the region.
+     * @param w width of the region.
+     * @param h height of the region.
+     * @param renderer draws the region when the context is passed to renderParallel, null if it is only drawn with
+     *                 directly.
+     * @return the context, reusable every frame.
      */
-    public abstract void tick();
+    public DrawContext createDrawContext(int x, int y, int w, int h, DrawContext.Renderer renderer){
+        return new DrawContext(this, x, y, w, h, renderer);
+    }
 
-    private static class RenderThread extends Thread{
-        private ASCIICanvas parent;
-        private int tickSpeed;
-        private long lastTick;
-        public RenderThread(ASCIICanvas parent){
-            this.parent = parent;
-            tickSpeed = 15;
+    /**
+     * Renders the regions of a frame in parallel, call from render(). Every context but the first is handed to the
+     * executor, the calling thread renders the first one, and the call returns once all of them are done, so the frame
+     * is complete before it is published. The regions must not overlap, and each context is passed at most once since
+     * a context is used by one thread at a time. How many contexts there are and how many threads run them is up to
+     * the caller; nothing is allocated per call.
+     * @param executor runs the regions, a rejected region is rendered on the calling thread.
+     * @param contexts contexts created by this canvas with a renderer.
+     * @throws IllegalArgumentException if a context was created by another canvas or is passed twice, before any
+     * region is rendered.
+     * @throws RuntimeException the first failure of a renderer, after all regions finished.
+     */
+    public void renderParallel(Executor executor, DrawContext... contexts){
+        if (contexts.length == 0) {
+            return;
         }
-
-        void setTickSpeed(int tickSpeed){
-            this.tickSpeed = tickSpeed;
+        // a foreign context would never count down this canvas, the wait below would not end
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i].canvas != this) {
+                throw new IllegalArgumentException("draw context " + i + " belongs to another canvas");
+            }
+            for (int j = 0; j < i; j++) {
+                if (contexts[j] == contexts[i]) {
+                    throw new IllegalArgumentException("draw context " + i + " is passed twice");
+                }
+            }
+        }
+        regionWaiter = Thread.currentThread();
+        regionsPending.set(contexts.length);
+        for (int i = 1; i < contexts.length; i++) {
+            try {
+                executor.execute(contexts[i].task);
+            } catch (RejectedExecutionException e) {
+                contexts[i].task.run();
+            }
         }
+        contexts[0].task.run();
+        while (regionsPending.get() != 0) {
+            LockSupport.park(this);
+        }
+        regionWaiter = null;
 
-        @Override
-        public void run() {
-            while(true) {
-                if (System.currentTimeMillis() > lastTick + (1000 / tickSpeed)) {
-                    parent.onRender();
-                    lastTick = System.currentTimeMillis();
-                }
+        Throwable failure = null;
+        for (DrawContext c : contexts) {
+            if (failure == null) {
+                failure = c.failure;
             }
+            c.failure = null;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
         }
     }
 
-    private static class TickThread extends Thread{
-        private ASCIICanvas parent;
-        private int tickSpeed;
-        private long lastTick;
-        public TickThread(ASCIICanvas parent){
-            this.parent = parent;
-            tickSpeed = 15;
+    // Called by a context when its region is done, the last one wakes the render thread
+    void regionDone(){
+        if (regionsPending.decrementAndGet() == 0) {
+            LockSupport.unpark(regionWaiter);
         }
+    }
 
-        void setTickSpeed(int tickSpeed){
-            this.tickSpeed = tickSpeed;
+    // Frame draw calls currently go to, read by draw contexts
+    CellFrame drawTarget(){
+        return target;
+    }
+
+    //--------------------------- Layers ------------------------------
+
+    /**
+     * Adds a layer to the stack composited under every frame. Layers are drawn in ascending z order, with whatever
+     * render() draws directly on the canvas on top of all of them.
+     * @param layer layer to add.
+     */
+    public void addLayer(Layer layer){
+        if (layers == null) {
+            layers = new LayerStack(width, height);
         }
+        layers.add(layer);
+    }
 
-        @Override
-        public void run() {
-            while(true) {
-                if (System.currentTimeMillis() > lastTick + (1000 / tickSpeed)) {
-                    parent.onTick();
-                    lastTick = System.currentTimeMillis();
-                }
+    /**
+     * @param layer layer to remove from the stack.
+     */
+    public void removeLayer(Layer layer){
+        if (layers != null) {
+            layers.remove(layer);
+            if (targetLayer == layer) {
+                drawTo(null);
             }
         }
     }
+
+    /**
+     * Sends the draw calls that follow to a layer instead of the canvas. Only the parts of the layer that are drawn to
+     * are composited again.
+     * @param layer layer to draw into, null to draw on the canvas again.
+     */
+    public void drawTo(Layer layer){
+        targetLayer = layer;
+        target = layer == null ? writeFrame : layer.plane;
+    }
+
+    //--------------------------- Sequencing ------------------------------
+
+    /**
+     * Called once on init
+     */
+    public abstract void load();
+
+    /**
+     * Called once when the window is closed by an in game command
+     */
+    public abstract void save();
+
+    /**
+     * Called once per frame, rate can be modified by calling frameRate();
+     */
+    public abstract void render();
+
+    /**
+     * Called once per game tick, rate can be modified by calling tickRate();
+     */
+    public abstract void tick();
 }
@@ -4,13 +4,23 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class ASCIICanvasManager extends Canvas {
+/**
+ * AWT window backend, rasterizes frames and shows them through the canvas {@link BufferStrategy}.
+ */
+public class ASCIICanvasManager extends Canvas implements RenderBackend {
 
     private int width, height;
     ScreenBuffer screenBuffer;
     private ASCIICanvas parent;
 
+    // Used for AWT rendering after generating image from ascii canvas
+    private BufferStrategy bs;
+    private final CellRasterizer rasterizer;
+
     public ASCIICanvasManager(int x, int y, int cx, int cy, int size, ASCIICanvas parent, Frame frame){
         this.parent = parent;
         width = x;
@@ -18,41 +28,108 @@ public class ASCIICanvasManager extends Canvas {
         frame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent we) {
-                stop();
+                // saving can take a while, the event thread is left free to close the window right away
+                we.getWindow().setVisible(false);
+                Thread shutdown = new Thread(() -> {
+                    if (ASCIICanvasManager.this.parent != null) {
+                        ASCIICanvasManager.this.parent.exit();
+                    } else {
+                        stop();
+                    }
+                }, "ASCIICanvas shutdown");
+                shutdown.start();
             }
         });
         frame.add(this);
         setSize(width, height);
-        screenBuffer = new ScreenBuffer(cx, cy, size, this);
+        rasterizer = new CellRasterizer(size);
+        screenBuffer = new ScreenBuffer(cx, cy, this);
     }
 
     void start(){
         screenBuffer.start();
     }
 
+    // Ends the program, the canvas has saved by now
     void stop() {
-        parent.save();
         System.exit(0);
     }
 
+    @Override
+    public void present(CellFrame frame, Color[] palette) {
+        BufferedImage image = rasterizer.rasterize(frame, palette);
+
+        // Manage AWT graphic buffering (buffer frames internally)
+        bs = getBufferStrategy();
+        if (bs == null) {
+            createBufferStrategy(2);
+            bs = getBufferStrategy();
+        }
+        Graphics g = bs.getDrawGraphics();
+
+        // Only the margins outside the grid need clearing, the image covers the rest
+        g.setColor(Color.BLACK);
+        g.fillRect(image.getWidth(), 0, width, height);
+        g.fillRect(0, image.getHeight(), image.getWidth(), height);
+        g.drawImage(image, 0, 0, null);
+
+        g.dispose();
+        bs.show();
+    }
+
+    @Override
+    public void warmUp(int columns, int rows) {
+        rasterizer.warmUp(columns, rows);
+        // only possible once the window is shown, otherwise left to the first present
+        if (isDisplayable() && getBufferStrategy() == null) {
+            createBufferStrategy(2);
+        }
+    }
+
+    /**
+     * @return rasterizer settings and redraw counters.
+     */
+    public CellRasterizer getRasterizer() {
+        return rasterizer;
+    }
+
+    @Override
+    public int getSurfaceWidth() {
+        return width;
+    }
+
+    @Override
+    public int getSurfaceHeight() {
+        return height;
+    }
+
     public static class ScreenBuffer extends Thread {
         // width in character
-        private final int cwidth = 96;
+        private final int cwidth;
 
         // height in characters
-        private final int cheight = 54;
+        private final int cheight;
 
-        // boolean to specify the buffer which is in read mode (true: A = read, B = write)
-        private volatile boolean bufferPointer;
+        // Triple buffered ascii canvas data: the writer draws into one frame, the presenter reads another and the
+        // third holds the newest complete frame. Frames only change hands through the ready exchange.
+        private final CellFrame[] frames = new CellFrame[3];
+        private int writeIndex = 0;
+        private int presentIndex = 1;
+        private final AtomicInteger ready = new AtomicInteger(2);
 
-        // buffers for ascii canvas data
-        private volatile char[] charBuffA;
-        private volatile int[] colorBuffA;
-        private volatile char[] charBuffB;
-        private volatile int[] colorBuffB;
+        // set on the ready index while it holds a frame the presenter has not picked up
+        private static final int FRESH = 4;
 
-        // Color buffer, default populated with some useful colors
-        private Color[] colors = {
+        // set by syncBuffer, the next write frame starts as a copy of the published one
+        private boolean retainFrame;
+
+        // frame published last, null before the first publish. Writer thread, only left alone by the exchange once no
+        // more frames are published.
+        private CellFrame published;
+
+        // Color buffer, default populated with some useful colors. Replaced on publish when colors were interned, read
+        // by the presenter.
+        private volatile Color[] colors = {
                 new Color(0xFFFFFF),
                 new Color(0xFF0000),
                 new Color(0x00FF00),
@@ -70,31 +147,57 @@ public class ASCIICanvasManager extends Canvas {
                 new Color(0x000080),
                 new Color(0x333333)
         };
-        // Used for AWT rendering after generating image from ascii canvas
-        private BufferStrategy bs;
+        // RGB colors interned by the writer, appended after the palette
+        private final ColorTable colorTable;
 
         // Frame rate limiting vars
-        private long lastFrameTime = 0;
-        private int frameCap = 15;
+        private volatile int frameCap = 15;
+
+        // longest the presenter waits for a new frame before presenting the current one again
+        private static final long REFRESH_NANOS = 1_000_000_000L;
+
+        // where presented frames go
+        private final RenderBackend backend;
 
-        // ASCII font
-        private Font monoFont;
+        private volatile boolean running = true;
 
-        // width of characters
-        private int padding;
+        // present timings, null until a canvas hands over its metrics
+        private volatile Metrics metrics;
 
-        private ASCIICanvasManager cManager;
+        // set once a published frame was presented, by whichever thread presents
+        private boolean firstFramePresented;
 
+        // timings overlay, drawn over a copy of the presented frame so published frames never hold it
+        private volatile MetricsOverlay overlay;
+        private CellFrame overlayFrame;
+
+        /**
+         * Presents through the window of a manager.
+         * @param x width in characters.
+         * @param y height in characters.
+         * @param cSize font size, unused since the manager rasterizes with its own font.
+         * @param cManager window to present to.
+         * @deprecated use {@link #ScreenBuffer(int, int, RenderBackend)}, any backend can be presented to.
+         */
+        @Deprecated
         public ScreenBuffer(int x, int y, int cSize, ASCIICanvasManager cManager) {
-            this.cManager = cManager;
-            if (monoFont == null) {
-                padding = cSize;
-                monoFont = new Font(Font.MONOSPACED, Font.BOLD, cSize);
+            this(x, y, cManager);
+        }
+
+        /**
+         * @param x width in characters.
+         * @param y height in characters.
+         * @param backend where frames are presented.
+         */
+        public ScreenBuffer(int x, int y, RenderBackend backend) {
+            super("ASCIICanvas presenter");
+            this.backend = backend;
+            cwidth = x;
+            cheight = y;
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new CellFrame(cwidth, cheight);
             }
-            charBuffA = new char[cwidth * cheight];
-            charBuffB = new char[cwidth * cheight];
-            colorBuffA = new int[cwidth * cheight];
-            colorBuffB = new int[cwidth * cheight];
+            colorTable = new ColorTable(colors);
         }
 
         /**
@@ -102,9 +205,27 @@ public class ASCIICanvasManager extends Canvas {
          * @param new_colors array of Colors in order of their id.
          */
         public void overwriteColors(Color[] new_colors){
+            colorTable.reset(new_colors);
             colors = new_colors;
         }
 
+        // Palette index of a packed RGB color, appended to the palette on first use. Writer thread only.
+        int internColor(int rgb){
+            return colorTable.intern(rgb);
+        }
+
+        // Palette the frame being written will be presented with, with the colors interned so far. Writer thread only.
+        Color[] getColors(){
+            return colorTable.palette();
+        }
+
+        /**
+         * @return the backend frames are presented to.
+         */
+        public RenderBackend getBackend(){
+            return backend;
+        }
+
         /**
          * Called to set the actual frame rate of the window refresh rather than the canvas refresh.
          * @param fps number of times a frame can be drawn per second.
@@ -113,59 +234,120 @@ public class ASCIICanvasManager extends Canvas {
             frameCap = fps;
         }
 
-        // thread management, calls Render() once per frame
+        // thread management, parks until a frame is published and calls Render() at most frameCap times per second
         @Override
         public void run() {
-            while(true) {
-                if (System.currentTimeMillis() > lastFrameTime + (1000 / frameCap)) {
-                    Render();
-                    lastFrameTime = System.currentTimeMillis();
+            long nextPresent = System.nanoTime();
+            while(running) {
+                long waitUntil = System.nanoTime() + REFRESH_NANOS;
+                while ((ready.get() & FRESH) == 0 && waitUntil - System.nanoTime() > 0) {
+                    LockSupport.parkNanos(this, waitUntil - System.nanoTime());
+                }
+                Scheduler.sleepUntil(nextPresent);
+                Render();
+
+                long now = System.nanoTime();
+                nextPresent += Scheduler.periodOf(frameCap);
+                if (nextPresent - now < 0) {
+                    nextPresent = now;
                 }
             }
         }
 
-        // Called on render of canvas to screen (distinct from canvas render which generates the canvas)
-        private void Render(){
-            // Manage ASCII -> graphics buffer; Don't want to read from the active write buffer.
-            char[] charBuff = bufferPointer ? charBuffA : charBuffB;
-            int[] colorBuff = bufferPointer ? colorBuffA : colorBuffB;
-
-            // Manage AWT graphic buffering (buffer frames internally)
-            bs = cManager.getBufferStrategy();
-            if (bs == null) {
-                cManager.createBufferStrategy(2);
-                bs = cManager.getBufferStrategy();
-            }
-            Graphics g = bs.getDrawGraphics();
-            g.setFont(monoFont);
-
-            // Draw BG
-            g.setColor(new Color(0));
-            g.fillRect(0, 0, cManager.width, cManager.height);
-
-            // Draw Chars
-            for (int y = 0; y < cheight; y++) {
-                for (int x = 0; x < cwidth; x++) {
-                    g.setColor(colors[colorBuff[x + y * cwidth]]);
-                    g.drawChars(charBuff, x + y * cwidth, 1, padding * x, padding * (y + 1));
+        // Records present times into the given metrics
+        void setMetrics(Metrics metrics){
+            this.metrics = metrics;
+        }
+
+        // Draws an overlay over every presented frame, null for none
+        void setOverlay(MetricsOverlay overlay){
+            this.overlay = overlay;
+        }
+
+        // Warms up the backend for frames of this size, see RenderBackend.warmUp. Finishes before the first present.
+        void warmUp(){
+            long start = System.nanoTime();
+            Metrics m = metrics;
+            try {
+                backend.warmUp(cwidth, cheight);
+            } catch (RuntimeException e) {
+                // only costs the first frame its head start, kept for Metrics.getWarmUpError
+                if (m != null) {
+                    m.recordWarmUpError(e);
                 }
             }
+            if (m != null) {
+                m.recordWarmUp(System.nanoTime() - start);
+            }
+        }
+
+        // Newest published frame, see published
+        CellFrame getPublishedFrame(){
+            return published;
+        }
 
-            bs.show();
+        // Stops presenting after the current frame
+        void shutdown(){
+            running = false;
+            LockSupport.unpark(this);
         }
 
-        // Swaps the read and write buffers with a pointer swap, any references to buffers must be refreshed!
-        void swapBuffer(){
-            bufferPointer = !bufferPointer;
+        // Called on render of canvas to screen (distinct from canvas render which generates the canvas)
+        void Render(){
+            // Pick up the newest complete frame, the current one is reused if none was published since the last
+            // present
+            boolean fresh = (ready.get() & FRESH) != 0;
+            if (fresh) {
+                presentIndex = ready.getAndSet(presentIndex) & ~FRESH;
+            }
+            Metrics m = metrics;
+            CellFrame frame = frames[presentIndex];
+            MetricsOverlay o = overlay;
+            if (o != null && m != null) {
+                if (overlayFrame == null) {
+                    overlayFrame = new CellFrame(cwidth, cheight);
+                }
+                overlayFrame.copyFrom(frame);
+                o.draw(overlayFrame, m);
+                frame = overlayFrame;
+            }
+            if (m != null && m.enabled) {
+                long start = System.nanoTime();
+                backend.present(frame, colors);
+                m.recordPresent(System.nanoTime() - start);
+            } else {
+                backend.present(frame, colors);
+            }
+            if (fresh && !firstFramePresented) {
+                firstFramePresented = true;
+                if (m != null) {
+                    m.recordFirstFrame(System.nanoTime());
+                }
+            }
         }
 
-        // Obtain references to buffers
-        char[] getCharBuffer(){
-            return !bufferPointer ? charBuffA : charBuffB;
+        /**
+         * Publishes the frame that was being written and hands the writer a new one in a single exchange.
+         * @param carried frame a frame kept by syncBuffer starts as a copy of, null for the published one.
+         * @return frame to draw the next frame into.
+         */
+        CellFrame publish(CellFrame carried){
+            published = frames[writeIndex];
+            // colors interned while drawing become visible with the frame using them
+            colors = colorTable.palette();
+            writeIndex = ready.getAndSet(writeIndex | FRESH) & ~FRESH;
+            LockSupport.unpark(this);
+            CellFrame next = frames[writeIndex];
+            if (retainFrame) {
+                next.copyFrom(carried != null ? carried : published);
+                retainFrame = false;
+            }
+            return next;
         }
 
-        int[] getColorBuffer(){
-            return !bufferPointer ? colorBuffA : colorBuffB;
+        // Obtain the frame currently in write mode
+        CellFrame getWriteFrame(){
+            return frames[writeIndex];
         }
 
         // Get canvas dimensions
@@ -179,22 +361,17 @@ public class ASCIICanvasManager extends Canvas {
 
         // Synchronizes buffer for when clear is not called; MUST BE CALLED AT THE END OF THE DRAW LOOP
         void syncBuffer(){
-            if(bufferPointer){
-                charBuffA = charBuffB.clone();
-                colorBuffA = colorBuffB.clone();
-            }else{
-                charBuffB = charBuffA.clone();
-                colorBuffB = colorBuffA.clone();
-            }
+            retainFrame = true;
         }
 
-        // Wipes the buffer that is currently in write mode
+        // True when syncBuffer was called for the frame being written
+        boolean isRetainingFrame(){
+            return retainFrame;
+        }
+
+        // Wipes the frame that is currently in write mode
         void clear(){
-            if(!bufferPointer){
-                charBuffA = new char[cwidth * cheight];
-            }else{
-                charBuffB = new char[cwidth * cheight];
-            }
+            frames[writeIndex].clear();
         }
     }
 
@@ -0,0 +1,280 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the ticks and frames of many headless canvases on a fixed pool of worker threads, see
+ * {@link ASCIICanvas#start(CanvasRuntime)}. Hosted canvases present each frame on the worker right after it is
+ * rendered, so a canvas costs no thread of its own and thousands of low rate sessions fit in one JVM.
+ * <p>
+ * Canvases are stepped in deadline order, whichever tick or frame has been due the longest runs first, with ties going
+ * to the canvas that has waited longest. A canvas is only ever stepped by one worker at a time. Each canvas keeps its
+ * own {@link Metrics} and {@link Scheduler} stats, the delay between a deadline and a worker picking it up is recorded
+ * for the whole runtime in {@link #getSchedulingDelay}.
+ * <p>
+ * A canvas whose tick or render throws is stopped without calling save(), its stream, recording and snapshot writer
+ * are closed, and the exception is kept for {@link ASCIICanvas#getFailure()} and passed to the failure handler of the
+ * runtime. The other canvases carry on.
+ */
+public class CanvasRuntime {
+    /**
+     * Told about canvases stopped by an exception, on the worker thread that ran the failing step.
+     */
+    public interface FailureHandler {
+        void failed(ASCIICanvas canvas, RuntimeException failure);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when the earliest deadline changes
+    private final Condition due = lock.newCondition();
+    // signalled when a step finishes
+    private final Condition stepped = lock.newCondition();
+
+    private final PriorityQueue<Hosted> queue = new PriorityQueue<>();
+    private final Thread[] workers;
+    private final FailureHandler onFailure;
+    private volatile boolean running = true;
+    // tie breaker, incremented on every enqueue
+    private long order;
+    private int hosted;
+
+    private final Histogram schedulingDelay = new Histogram();
+    private volatile long steps;
+
+    /**
+     * Starts one worker per available processor.
+     */
+    public CanvasRuntime() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workers number of worker threads.
+     */
+    public CanvasRuntime(int workers) {
+        this(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ASCIICanvas runtime " + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Hands failures to the uncaught exception handler of the worker thread.
+     * @param workers number of worker threads.
+     * @param threads creates the worker threads, a virtual thread factory can be passed on JDKs that have one.
+     */
+    public CanvasRuntime(int workers, ThreadFactory threads) {
+        this(workers, threads, (canvas, failure) -> {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, failure);
+        });
+    }
+
+    /**
+     * @param workers number of worker threads.
+     * @param threads creates the worker threads, a virtual thread factory can be passed on JDKs that have one.
+     * @param onFailure told about every canvas stopped by an exception.
+     */
+    public CanvasRuntime(int workers, ThreadFactory threads, FailureHandler onFailure) {
+        this.onFailure = onFailure;
+        this.workers = new Thread[Math.max(1, workers)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = threads.newThread(this::work);
+            this.workers[i].start();
+        }
+    }
+
+    // Queues a canvas, its first step runs right away
+    void host(Hosted h) {
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("runtime is shut down");
+            }
+            hosted++;
+            h.deadline = System.nanoTime();
+            enqueue(h);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops stepping a canvas, a step in progress ends after its current tick or frame and is waited for when on
+    // another thread
+    void remove(Hosted h) {
+        lock.lock();
+        try {
+            if (h.removed) {
+                return;
+            }
+            h.removed = true;
+            hosted--;
+            queue.remove(h);
+            // also ends the step when removed from inside its own tick
+            h.scheduler.stop();
+            while (h.worker != null && h.worker != Thread.currentThread()) {
+                stepped.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers after their current step. Hosted canvases are left as they are, call {@link ASCIICanvas#exit}
+     * on them first to have them saved.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            due.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the workers to finish after {@link #shutdown}.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * @return number of canvases hosted.
+     */
+    public int getHostedCount() {
+        lock.lock();
+        try {
+            return hosted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return scheduler steps run, each running the ticks and frame due for one canvas.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return nanoseconds from a canvas deadline passing to a worker starting its step. Grows when the workers cannot
+     * keep up with the hosted canvases.
+     */
+    public Histogram getSchedulingDelay() {
+        return schedulingDelay;
+    }
+
+    private void work() {
+        lock.lock();
+        try {
+            while (running) {
+                Hosted h = queue.peek();
+                if (h == null) {
+                    due.awaitUninterruptibly();
+                    continue;
+                }
+                long now = System.nanoTime();
+                long wait = h.deadline - now;
+                if (wait > 0) {
+                    due.awaitNanos(wait);
+                    continue;
+                }
+                queue.poll();
+                h.worker = Thread.currentThread();
+                if (!queue.isEmpty()) {
+                    // the next canvas may already be due too
+                    due.signal();
+                }
+                steps++;
+
+                lock.unlock();
+                long next;
+                try {
+                    schedulingDelay.record(-wait);
+                    next = h.scheduler.step(now);
+                } catch (RuntimeException e) {
+                    // a failing canvas is stopped and reported, the others carry on
+                    next = 0;
+                    h.failure = e;
+                    h.canvas.stopAfterFailure();
+                    try {
+                        onFailure.failed(h.canvas, e);
+                    } catch (RuntimeException handlerFailure) {
+                        e.addSuppressed(handlerFailure);
+                    }
+                } finally {
+                    lock.lock();
+                }
+
+                h.worker = null;
+                stepped.signalAll();
+                if (h.failure != null && !h.removed) {
+                    h.removed = true;
+                    hosted--;
+                }
+                if (!h.removed) {
+                    h.deadline = next;
+                    enqueue(h);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Hosted h) {
+        h.order = order++;
+        queue.add(h);
+        if (queue.peek() == h) {
+            due.signal();
+        }
+    }
+
+    // A hosted canvas and its place in the queue, guarded by the lock
+    static final class Hosted implements Comparable<Hosted> {
+        final ASCIICanvas canvas;
+        final Scheduler scheduler;
+        long deadline;
+        long order;
+        // worker stepping the canvas, null while it waits
+        Thread worker;
+        boolean removed;
+        // exception that stopped the canvas, read from any thread
+        volatile RuntimeException failure;
+
+        Hosted(ASCIICanvas canvas) {
+            this.canvas = canvas;
+            scheduler = canvas.getScheduler();
+        }
+
+        @Override
+        public int compareTo(Hosted o) {
+            long d = deadline - o.deadline;
+            if (d != 0) {
+                return d < 0 ? -1 : 1;
+            }
+            return Long.compare(order, o.order);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.cleotroph.asciicanvas;
+
+/**
+ * Packing of a cell into a single long: glyph, foreground, background and attribute bits. A cell of 0 is empty.
+ * <pre>
+ * bits  0-15 glyph
+ * bits 16-31 foreground palette index
+ * bits 32-47 background palette index + 1, 0 for no background
+ * bits 48-63 attributes
+ * </pre>
+ */
+public final class Cell {
+    /**
+     * Draws the glyph with a heavier stroke.
+     */
+    public static final int BOLD = 1;
+
+    /**
+     * Draws a line under the glyph.
+     */
+    public static final int UNDERLINE = 2;
+
+    /**
+     * Background value for cells that leave the background empty.
+     */
+    public static final int NO_BACKGROUND = -1;
+
+    // background and underline make an otherwise empty cell visible
+    private static final long BLANK_STYLE_MASK = 0xFFFFL << 32 | (long) UNDERLINE << 48;
+
+    private Cell() {
+    }
+
+    /**
+     * @param glyph character to draw.
+     * @param foreground palette index of the glyph color.
+     * @param background palette index of the background, or {@link #NO_BACKGROUND}.
+     * @param attributes combination of {@link #BOLD} and {@link #UNDERLINE}.
+     * @return packed cell.
+     */
+    public static long pack(char glyph, int foreground, int background, int attributes) {
+        return glyph
+                | (long) (foreground & 0xFFFF) << 16
+                | (long) ((background + 1) & 0xFFFF) << 32
+                | (long) (attributes & 0xFFFF) << 48;
+    }
+
+    public static char glyph(long cell) {
+        return (char) cell;
+    }
+
+    public static int foreground(long cell) {
+        return (int) (cell >>> 16) & 0xFFFF;
+    }
+
+    /**
+     * @param cell packed cell.
+     * @return palette index of the background, or {@link #NO_BACKGROUND}.
+     */
+    public static int background(long cell) {
+        return ((int) (cell >>> 32) & 0xFFFF) - 1;
+    }
+
+    public static int attributes(long cell) {
+        return (int) (cell >>> 48);
+    }
+
+    /**
+     * @param cell packed cell.
+     * @return true if drawing the cell shows nothing but the default black background.
+     */
+    public static boolean isBlank(long cell) {
+        char glyph = (char) cell;
+        return (glyph == 0 || glyph == ' ') && (cell & BLANK_STYLE_MASK) == 0;
+    }
+}
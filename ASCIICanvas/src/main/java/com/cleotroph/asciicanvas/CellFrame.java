@@ -0,0 +1,241 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.Arrays;
+
+/**
+ * One preallocated frame of cells, each packed into a long as described by {@link Cell}. Frames are recycled between
+ * the writer and the presenter and are never reallocated, clearing and copying happen in place.
+ * <p>
+ * Cells are stored in 32x32 chunks, each chunk a contiguous run of the cell arrays. Every chunk carries a touched flag
+ * that is set when a cell in it is written and only reset once the chunk is blank again, so clearing, copying and
+ * diffing can skip chunks that were never drawn to.
+ */
+public final class CellFrame {
+    // chunk edge length, as a shift and in cells
+    static final int CHUNK_SHIFT = 5;
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK - 1;
+    static final int CHUNK_CELLS = CHUNK * CHUNK;
+
+    // dimensions in characters
+    public final int width;
+    public final int height;
+
+    // dimensions in chunks
+    final int chunksX;
+    final int chunksY;
+
+    // packed cells in chunk order, see index()
+    final long[] cells;
+
+    // per chunk flag, false guarantees every cell in the chunk is 0
+    final boolean[] touched;
+
+    // per chunk flag set by every write, reset by whoever consumes the changes. Null unless tracked, see Layer.
+    final boolean[] dirty;
+
+    public CellFrame(int width, int height) {
+        this(width, height, false);
+    }
+
+    CellFrame(int width, int height, boolean trackDirty) {
+        this.width = width;
+        this.height = height;
+        chunksX = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+        chunksY = (height + CHUNK_MASK) >> CHUNK_SHIFT;
+        cells = new long[chunksX * chunksY * CHUNK_CELLS];
+        touched = new boolean[chunksX * chunksY];
+        dirty = trackDirty ? new boolean[touched.length] : null;
+    }
+
+    // Flags a chunk as written to
+    private void mark(int chunk) {
+        touched[chunk] = true;
+        if (dirty != null) {
+            dirty[chunk] = true;
+        }
+    }
+
+    /**
+     * Array position of a cell, rows of a chunk are contiguous so x + 1 is the next position within a chunk.
+     * @param x x of the cell, must be in bounds.
+     * @param y y of the cell, must be in bounds.
+     * @return position in the cell arrays.
+     */
+    int index(int x, int y) {
+        int chunk = (y >> CHUNK_SHIFT) * chunksX + (x >> CHUNK_SHIFT);
+        return (chunk << (CHUNK_SHIFT * 2)) | ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK);
+    }
+
+    // Writes one cell and marks its chunk as touched
+    void set(int pos, long cell) {
+        cells[pos] = cell;
+        mark(pos >> (CHUNK_SHIFT * 2));
+    }
+
+    // Writes one cell into columns [x0, x1) of row y, a fill per chunk the run crosses. Bounds must be valid.
+    void fillRow(int x0, int x1, int y, long cell) {
+        while (x0 < x1) {
+            int end = Math.min(x1, (x0 | CHUNK_MASK) + 1);
+            int pos = index(x0, y);
+            Arrays.fill(cells, pos, pos + (end - x0), cell);
+            mark(pos >> (CHUNK_SHIFT * 2));
+            x0 = end;
+        }
+    }
+
+    // Writes glyphs [from, from + n) of text in one style into row y from column x0. Bounds must be valid.
+    void writeGlyphs(int x0, int y, String text, int from, int n, long style) {
+        int x1 = x0 + n;
+        while (x0 < x1) {
+            int end = Math.min(x1, (x0 | CHUNK_MASK) + 1);
+            int pos = index(x0, y);
+            for (int x = x0; x < end; x++) {
+                cells[pos++] = style | text.charAt(from++);
+            }
+            mark((pos - 1) >> (CHUNK_SHIFT * 2));
+            x0 = end;
+        }
+    }
+
+    // Writes n sprite cells starting at from into row y from column x0, packing each glyph with its foreground and the
+    // style bits. Glyphs equal to transparent are skipped, -1 skips none. Bounds must be valid.
+    void writeSprite(int x0, int y, char[] glyphs, int[] colors, int from, int n, long style, int transparent) {
+        int x1 = x0 + n;
+        while (x0 < x1) {
+            int end = Math.min(x1, (x0 | CHUNK_MASK) + 1);
+            int pos = index(x0, y);
+            for (int x = x0; x < end; x++, pos++, from++) {
+                char glyph = glyphs[from];
+                if (glyph != transparent) {
+                    cells[pos] = style | (long) (colors[from] & 0xFFFF) << 16 | glyph;
+                }
+            }
+            mark((pos - 1) >> (CHUNK_SHIFT * 2));
+            x0 = end;
+        }
+    }
+
+    // Copies cells [from, from + n) of src into row y from column x0, one copy per chunk the run crosses. Bounds must
+    // be valid.
+    void writeCells(int x0, int y, long[] src, int from, int n) {
+        int x1 = x0 + n;
+        while (x0 < x1) {
+            int end = Math.min(x1, (x0 | CHUNK_MASK) + 1);
+            int pos = index(x0, y);
+            System.arraycopy(src, from, cells, pos, end - x0);
+            mark(pos >> (CHUNK_SHIFT * 2));
+            from += end - x0;
+            x0 = end;
+        }
+    }
+
+    // Writes one cell into [x0, x1) by [y0, y1) a chunk at a time, the rows of a chunk covered across its whole width
+    // are contiguous and filled at once. Bounds must be valid.
+    void fillRect(int x0, int y0, int x1, int y1, long cell) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int cy = y0 >> CHUNK_SHIFT; cy <= (y1 - 1) >> CHUNK_SHIFT; cy++) {
+            int ry0 = Math.max(y0, cy << CHUNK_SHIFT);
+            int ry1 = Math.min(y1, (cy + 1) << CHUNK_SHIFT);
+            for (int cx = x0 >> CHUNK_SHIFT; cx <= (x1 - 1) >> CHUNK_SHIFT; cx++) {
+                int rx0 = Math.max(x0, cx << CHUNK_SHIFT);
+                int rx1 = Math.min(x1, (cx + 1) << CHUNK_SHIFT);
+                int pos = index(rx0, ry0);
+                if (rx1 - rx0 == CHUNK) {
+                    Arrays.fill(cells, pos, pos + ((ry1 - ry0) << CHUNK_SHIFT), cell);
+                } else {
+                    for (int y = ry0; y < ry1; y++, pos += CHUNK) {
+                        Arrays.fill(cells, pos, pos + (rx1 - rx0), cell);
+                    }
+                }
+                mark(cy * chunksX + cx);
+            }
+        }
+    }
+
+    // Writes one cell into rows [y0, y1) of column x. Bounds must be valid.
+    void fillColumn(int x, int y0, int y1, long cell) {
+        for (int y = y0; y < y1; y++) {
+            set(index(x, y), cell);
+        }
+    }
+
+    /**
+     * @param x x of the cell.
+     * @param y y of the cell.
+     * @return packed cell at (x, y), 0 for an empty cell.
+     */
+    public long cellAt(int x, int y) {
+        return cells[index(x, y)];
+    }
+
+    /**
+     * @param x x of the cell.
+     * @param y y of the cell.
+     * @return character at (x, y), 0 for an empty cell.
+     */
+    public char charAt(int x, int y) {
+        return Cell.glyph(cells[index(x, y)]);
+    }
+
+    /**
+     * @param x x of the cell.
+     * @param y y of the cell.
+     * @return palette index of the color at (x, y).
+     */
+    public int colorAt(int x, int y) {
+        return Cell.foreground(cells[index(x, y)]);
+    }
+
+    // Wipes every cell of the touched chunks
+    void clear() {
+        for (int c = 0; c < touched.length; c++) {
+            if (touched[c]) {
+                Arrays.fill(cells, c * CHUNK_CELLS, (c + 1) * CHUNK_CELLS, 0L);
+                touched[c] = false;
+                if (dirty != null) {
+                    dirty[c] = true;
+                }
+            }
+        }
+    }
+
+    // Fills the empty cells of this frame from another frame of the same size, chunks blank in the other are skipped
+    // and chunks blank in this one are copied whole
+    void underlay(CellFrame other) {
+        for (int c = 0; c < touched.length; c++) {
+            if (!other.touched[c]) {
+                continue;
+            }
+            int from = c * CHUNK_CELLS;
+            if (!touched[c]) {
+                System.arraycopy(other.cells, from, cells, from, CHUNK_CELLS);
+                mark(c);
+                continue;
+            }
+            for (int i = from; i < from + CHUNK_CELLS; i++) {
+                if (cells[i] == 0) {
+                    cells[i] = other.cells[i];
+                }
+            }
+        }
+    }
+
+    // Copies every cell of another frame of the same size into this one, chunks blank in both are skipped
+    void copyFrom(CellFrame other) {
+        for (int c = 0; c < touched.length; c++) {
+            int from = c * CHUNK_CELLS;
+            if (other.touched[c]) {
+                System.arraycopy(other.cells, from, cells, from, CHUNK_CELLS);
+            } else if (touched[c]) {
+                Arrays.fill(cells, from, from + CHUNK_CELLS, 0L);
+            }
+            if (dirty != null && (touched[c] || other.touched[c])) {
+                dirty[c] = true;
+            }
+            touched[c] = other.touched[c];
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Rasterizes cell frames into a persistent image. Shared by the backends that produce pixels.
+ * By default cells are blitted in software, writing glyph masks straight into the pixels of the image, glyphs without
+ * a mask and software blitting turned off go through cached glyph tiles drawn with Graphics.
+ * With damage tracking enabled only the cells that changed since the last frame are repainted.
+ */
+public class CellRasterizer {
+    // ASCII font
+    private final Font monoFont;
+
+    // width of characters
+    private final int padding;
+
+    // pre-rasterized glyph tiles, built lazily from monoFont and padding
+    private volatile GlyphAtlas atlas;
+    private volatile long atlasMemoryLimit = GlyphAtlas.DEFAULT_MEMORY_LIMIT;
+
+    // palette the atlas was built for, a new palette drops the atlas
+    private Color[] atlasPalette;
+
+    // Software blitting: glyph coverage masks shared across colors, the palette as packed RGB, and the pixels of the
+    // persistent image
+    private final GlyphMasks masks;
+    private volatile boolean softwareBlitting = true;
+    private int[] paletteRgb;
+    private int[] pixels;
+    private final int underlineTop, underlineBottom;
+
+    // Damage tracking: cells last painted into the persistent image in frame chunk order, which chunks of it may
+    // hold characters, and which rows were repainted this frame
+    private volatile boolean damageTracking = true;
+    private BufferedImage image;
+    private long[] shownCells;
+    private boolean[] shownTouched;
+    private boolean repaintAll;
+    private boolean[] rowDirty;
+
+    // Parallel banded painting, used when the image is at least PARALLEL_MIN_PIXELS large
+    static final long PARALLEL_MIN_PIXELS = 1L << 20;
+    private volatile ForkJoinPool pool;
+    private Band[] bands;
+
+    // Frame being painted, shared with the band workers
+    private CellFrame paintFrame;
+    private Color[] paintPalette;
+    private GlyphAtlas paintGlyphs;
+    private boolean paintAll;
+    private boolean paintSoftware;
+
+    // drawn by ASCIICanvas.drawPerimeter, warmed up with ASCII
+    private static final char[] BORDER_GLYPHS = {'\u2550', '\u2551', '\u2557', '\u255D', '\u2554', '\u255A'};
+
+    // Redraw counters for the last rasterized frame and since creation
+    private volatile int cellsRedrawn;
+    private volatile int rowsRedrawn;
+    private volatile long totalCellsRedrawn;
+
+    /**
+     * @param size size of characters in pixels.
+     */
+    CellRasterizer(int size) {
+        padding = size;
+        monoFont = new Font(Font.MONOSPACED, Font.BOLD, size);
+        masks = new GlyphMasks(monoFont, size);
+        // same underline as the glyph tiles, clipped to the cell
+        underlineTop = Math.min(size, masks.baseline() + 1);
+        underlineBottom = Math.min(size, underlineTop + Math.max(1, size / 16));
+    }
+
+    /**
+     * Sets the amount of memory the glyph cache may use before least recently used glyphs are evicted.
+     * @param bytes memory limit in bytes.
+     */
+    public void setGlyphCacheLimit(long bytes){
+        atlasMemoryLimit = bytes;
+        atlas = null;
+    }
+
+    /**
+     * Enables or disables damage tracking. When enabled only cells that changed since the last frame are repainted
+     * into the persistent image, otherwise every cell is redrawn each frame.
+     * @param enabled true to only repaint changed cells.
+     */
+    public void setDamageTracking(boolean enabled){
+        damageTracking = enabled;
+    }
+
+    /**
+     * Enables or disables software blitting. When enabled cells are written straight into the pixels of the image from
+     * glyph masks, otherwise every cell is drawn through Graphics from cached glyph tiles.
+     * @param enabled true to blit cells in software.
+     */
+    public void setSoftwareBlitting(boolean enabled){
+        softwareBlitting = enabled;
+    }
+
+    /**
+     * Sets how many worker threads rasterize a frame. Each worker paints a horizontal band of rows into its own region
+     * of the shared image. Images smaller than about a megapixel are always painted on the calling thread, where
+     * forking would cost more than it saves.
+     * @param workers number of workers, 1 to always paint on the calling thread.
+     */
+    public synchronized void setParallelism(int workers){
+        ForkJoinPool old = pool;
+        pool = workers > 1 ? new ForkJoinPool(workers) : null;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * @return number of cells repainted for the last frame.
+     */
+    public int getCellsRedrawn(){
+        return cellsRedrawn;
+    }
+
+    /**
+     * @return number of rows containing at least one repainted cell in the last frame.
+     */
+    public int getRowsRedrawn(){
+        return rowsRedrawn;
+    }
+
+    /**
+     * @return number of cells repainted since the rasterizer was created.
+     */
+    public long getTotalCellsRedrawn(){
+        return totalCellsRedrawn;
+    }
+
+    /**
+     * @return size of a cell in pixels.
+     */
+    public int getCellSize(){
+        return padding;
+    }
+
+    /**
+     * Paints a frame into the persistent image.
+     * @param frame cells to paint.
+     * @param palette colors indexed by the cell color ids.
+     * @return the image holding the painted frame, reused between calls.
+     */
+    BufferedImage rasterize(CellFrame frame, Color[] palette){
+        // Glyph tiles and packed colors are rebuilt whenever the palette changes, a palette that only had colors
+        // appended keeps them and just packs the new colors
+        GlyphAtlas glyphs = atlas;
+        if (glyphs != null && atlasPalette != palette && extendsPalette(palette, atlasPalette)) {
+            int known = paletteRgb.length;
+            paletteRgb = Arrays.copyOf(paletteRgb, palette.length);
+            for (int i = known; i < palette.length; i++) {
+                paletteRgb[i] = palette[i].getRGB() & 0xFFFFFF;
+            }
+            atlasPalette = palette;
+        }
+        if (glyphs == null || atlasPalette != palette) {
+            glyphs = new GlyphAtlas(monoFont, padding, atlasMemoryLimit);
+            atlas = glyphs;
+            atlasPalette = palette;
+            paletteRgb = new int[palette.length];
+            for (int i = 0; i < palette.length; i++) {
+                paletteRgb[i] = palette[i].getRGB() & 0xFFFFFF;
+            }
+            repaintAll = true;
+        }
+
+        allocate(frame);
+        if (!damageTracking) {
+            repaintAll = true;
+        }
+
+        // State read by the band workers, published to them by the fork join invoke
+        paintFrame = frame;
+        paintPalette = palette;
+        paintGlyphs = glyphs;
+        paintAll = repaintAll;
+        paintSoftware = softwareBlitting;
+        repaintAll = false;
+        Arrays.fill(rowDirty, false);
+
+        int drawn;
+        ForkJoinPool workers = pool;
+        if (workers != null && (long) image.getWidth() * image.getHeight() >= PARALLEL_MIN_PIXELS) {
+            drawn = paintParallel(workers);
+        } else {
+            drawn = paintRows(0, frame.height);
+        }
+        System.arraycopy(frame.touched, 0, shownTouched, 0, shownTouched.length);
+        paintFrame = null;
+        paintPalette = null;
+
+        int rows = 0;
+        for (boolean dirty : rowDirty) {
+            if (dirty) {
+                rows++;
+            }
+        }
+        cellsRedrawn = drawn;
+        rowsRedrawn = rows;
+        totalCellsRedrawn += drawn;
+        return image;
+    }
+
+    /**
+     * Builds what the first frame of a size would otherwise build: the image and damage tracking state, and the glyph
+     * masks of printable ASCII and the borders of drawPerimeter, which also loads the font. Not thread safe with
+     * {@link #rasterize}.
+     * @param columns character width of the frames that will be rasterized.
+     * @param rows character height of the frames that will be rasterized.
+     */
+    void warmUp(int columns, int rows){
+        allocate(new CellFrame(columns, rows));
+        for (char c = ' '; c < 0x7F; c++) {
+            masks.get(c, false);
+            masks.get(c, true);
+        }
+        for (char c : BORDER_GLYPHS) {
+            masks.get(c, false);
+        }
+    }
+
+    // (Re)allocates the persistent image and damage tracking state when the frame size changes
+    private void allocate(CellFrame frame){
+        if (image == null || shownCells.length != frame.cells.length) {
+            image = new BufferedImage(frame.width * padding, frame.height * padding, BufferedImage.TYPE_INT_RGB);
+            shownCells = new long[frame.cells.length];
+            shownTouched = new boolean[frame.touched.length];
+            rowDirty = new boolean[frame.height];
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            repaintAll = true;
+        }
+    }
+
+    /**
+     * Whether a palette holds every entry of another at the same index, as palettes with interned RGB colors appended
+     * do. Cached colors of the old palette stay valid for the new one.
+     * @param palette new palette.
+     * @param previous palette colors were cached for.
+     * @return true if previous is a prefix of palette.
+     */
+    static boolean extendsPalette(Color[] palette, Color[] previous){
+        if (previous == null || palette.length < previous.length) {
+            return false;
+        }
+        for (int i = 0; i < previous.length; i++) {
+            if (palette[i] != previous[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Splits the rows into one band per worker and paints them in parallel, each into its own region of the image
+    private int paintParallel(ForkJoinPool workerPool){
+        int workers = workerPool.getParallelism();
+        if (bands == null || bands.length != workers) {
+            bands = new Band[workers];
+            for (int i = 0; i < workers; i++) {
+                bands[i] = new Band();
+            }
+        }
+        int height = paintFrame.height;
+        int rowsPerBand = (height + workers - 1) / workers;
+        for (int i = 0; i < workers; i++) {
+            bands[i].reinitialize();
+            bands[i].y0 = Math.min(height, i * rowsPerBand);
+            bands[i].y1 = Math.min(height, (i + 1) * rowsPerBand);
+        }
+        try {
+            workerPool.invoke(new BandJoin(bands));
+        } catch (RejectedExecutionException e) {
+            // the pool was replaced while this frame was being painted
+            return paintRows(0, height);
+        }
+
+        int drawn = 0;
+        for (Band band : bands) {
+            drawn += band.drawn;
+        }
+        return drawn;
+    }
+
+    // Diffs rows [y0, y1) against what was last painted and repaints only the changed cells, chunks that are blank in
+    // both are skipped without looking at their cells
+    private int paintRows(int y0, int y1){
+        CellFrame frame = paintFrame;
+        long[] cells = frame.cells;
+        boolean all = paintAll;
+        boolean software = paintSoftware;
+
+        int drawn = 0;
+        Graphics bg = null;
+        for (int cy = y0 >> CellFrame.CHUNK_SHIFT; cy <= (y1 - 1) >> CellFrame.CHUNK_SHIFT; cy++) {
+            int rowFrom = Math.max(y0, cy << CellFrame.CHUNK_SHIFT);
+            int rowTo = Math.min(y1, (cy + 1) << CellFrame.CHUNK_SHIFT);
+            for (int cx = 0; cx < frame.chunksX; cx++) {
+                int chunk = cy * frame.chunksX + cx;
+                if (!all && !frame.touched[chunk] && !shownTouched[chunk]) {
+                    continue;
+                }
+                int x0 = cx << CellFrame.CHUNK_SHIFT;
+                int x1 = Math.min(frame.width, x0 + CellFrame.CHUNK);
+                for (int y = rowFrom; y < rowTo; y++) {
+                    int pos = frame.index(x0, y);
+                    for (int x = x0; x < x1; x++, pos++) {
+                        long cell = cells[pos];
+                        if (!all && cell == shownCells[pos]) {
+                            continue;
+                        }
+                        if (!software || !blit(cell, x, y)) {
+                            if (bg == null) {
+                                bg = image.getGraphics();
+                                bg.setColor(Color.BLACK);
+                            }
+                            if (!Cell.isBlank(cell)) {
+                                bg.drawImage(paintGlyphs.get(cell, paintPalette), padding * x, padding * y, null);
+                            } else {
+                                bg.fillRect(padding * x, padding * y, padding, padding);
+                            }
+                        }
+                        shownCells[pos] = cell;
+                        rowDirty[y] = true;
+                        drawn++;
+                    }
+                }
+            }
+        }
+        if (bg != null) {
+            bg.dispose();
+        }
+        return drawn;
+    }
+
+    // Writes a cell straight into the pixels of the image, returns false if its glyph has no mask and must be drawn
+    // through Graphics instead
+    private boolean blit(long cell, int x, int y){
+        int stride = image.getWidth();
+        int origin = padding * y * stride + padding * x;
+        int background = Cell.background(cell);
+        int bgColor = background == Cell.NO_BACKGROUND ? 0 : paletteRgb[background];
+        if (Cell.isBlank(cell)) {
+            fillRows(origin, stride, 0, padding, 0);
+            return true;
+        }
+
+        char c = Cell.glyph(cell);
+        int attributes = Cell.attributes(cell);
+        GlyphMasks.Mask mask = masks.get(c == 0 ? ' ' : c, (attributes & Cell.BOLD) != 0);
+        if (mask == null) {
+            return false;
+        }
+        int fgColor = paletteRgb[Cell.foreground(cell)];
+        int[] dst = pixels;
+        byte[] coverage = mask.coverage;
+        if (mask.empty) {
+            fillRows(origin, stride, 0, padding, bgColor);
+        } else if (mask.solid) {
+            for (int py = 0, m = 0, row = origin; py < padding; py++, row += stride) {
+                for (int p = row, end = row + padding; p < end; p++, m++) {
+                    dst[p] = coverage[m] == 0 ? bgColor : fgColor;
+                }
+            }
+        } else {
+            for (int py = 0, m = 0, row = origin; py < padding; py++, row += stride) {
+                for (int p = row, end = row + padding; p < end; p++, m++) {
+                    dst[p] = blend(fgColor, bgColor, coverage[m] & 0xFF);
+                }
+            }
+        }
+        if ((attributes & Cell.UNDERLINE) != 0) {
+            fillRows(origin, stride, underlineTop, underlineBottom, fgColor);
+        }
+        return true;
+    }
+
+    // Fills rows [from, to) of the cell starting at origin with one color
+    private void fillRows(int origin, int stride, int from, int to, int rgb){
+        for (int py = from, row = origin + from * stride; py < to; py++, row += stride) {
+            Arrays.fill(pixels, row, row + padding, rgb);
+        }
+    }
+
+    // Mixes two packed RGB colors, alpha is the coverage of the first out of 255
+    private static int blend(int fg, int bg, int alpha){
+        if (alpha == 0) {
+            return bg;
+        }
+        if (alpha == 0xFF) {
+            return fg;
+        }
+        int inverse = 0xFF - alpha;
+        int r = (((fg >> 16) & 0xFF) * alpha + ((bg >> 16) & 0xFF) * inverse) / 0xFF;
+        int g = (((fg >> 8) & 0xFF) * alpha + ((bg >> 8) & 0xFF) * inverse) / 0xFF;
+        int b = ((fg & 0xFF) * alpha + (bg & 0xFF) * inverse) / 0xFF;
+        return r << 16 | g << 8 | b;
+    }
+
+    // One horizontal band of rows, reused across frames
+    private final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int y0, y1;
+        private int drawn;
+
+        @Override
+        protected void compute() {
+            drawn = y0 < y1 ? paintRows(y0, y1) : 0;
+        }
+    }
+
+    // Forks every band and waits for all of them
+    private static final class BandJoin extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Band[] bands;
+
+        BandJoin(Band[] bands) {
+            this.bands = bands;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(bands);
+        }
+    }
+}
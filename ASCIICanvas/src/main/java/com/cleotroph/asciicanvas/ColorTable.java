@@ -0,0 +1,157 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Palette that packed 24 bit RGB colors are interned into, so cells keep storing 16 bit palette indices while the draw
+ * API takes any color. Interning an RGB value seen before is a hash lookup, a new one appends a palette entry and is
+ * the only time a {@link Color} is created. Entries are never changed or removed, so palettes taken with
+ * {@link #palette()} only ever grow by appending. Not thread safe, used by the thread drawing the canvas.
+ */
+final class ColorTable {
+    // background indices are stored + 1 in 16 bits, see Cell
+    static final int MAX_COLORS = 0xFFFF;
+    // approximations of colors beyond MAX_COLORS are remembered until the map holds this many keys
+    private static final int MAX_KEYS = 1 << 18;
+
+    private Color[] colors;
+    private int[] rgb;
+    private int size;
+
+    // open addressing map from RGB + 1 (0 marks a free slot) to palette index
+    private int[] keys;
+    private int[] values;
+    private int keyCount;
+
+    // palette handed out by palette(), replaced whenever entries were added since
+    private Color[] published;
+
+    ColorTable(Color[] initial) {
+        reset(initial);
+    }
+
+    // Starts over from a palette, its entries keep their indices and the first index of a repeated color wins
+    void reset(Color[] initial) {
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, initial.length)) << 1);
+        colors = new Color[Math.min(MAX_COLORS, capacity)];
+        rgb = new int[colors.length];
+        size = 0;
+        keys = new int[64];
+        values = new int[64];
+        keyCount = 0;
+        for (Color c : initial) {
+            if (size == MAX_COLORS) {
+                break;
+            }
+            int value = c.getRGB() & 0xFFFFFF;
+            if (get(value) < 0) {
+                put(value, size);
+            }
+            append(c, value);
+        }
+        published = initial;
+    }
+
+    /**
+     * @param value packed 0xRRGGBB color, the top byte is ignored.
+     * @return palette index of the color, the closest existing color once the palette is full.
+     */
+    int intern(int value) {
+        value &= 0xFFFFFF;
+        int index = get(value);
+        if (index >= 0) {
+            return index;
+        }
+        if (size < MAX_COLORS) {
+            index = size;
+            append(new Color(value), value);
+        } else {
+            index = nearest(value);
+        }
+        if (keyCount < MAX_KEYS) {
+            put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the palette holding every entry so far, the same array until an entry is added.
+     */
+    Color[] palette() {
+        if (published.length != size) {
+            published = Arrays.copyOf(colors, size);
+        }
+        return published;
+    }
+
+    private void append(Color c, int value) {
+        if (size == colors.length) {
+            int capacity = Math.min(MAX_COLORS, colors.length * 2);
+            colors = Arrays.copyOf(colors, capacity);
+            rgb = Arrays.copyOf(rgb, capacity);
+        }
+        colors[size] = c;
+        rgb[size] = value;
+        size++;
+    }
+
+    // Closest entry by squared RGB distance, only used once the palette is full
+    private int nearest(int value) {
+        int r = (value >> 16) & 0xFF, g = (value >> 8) & 0xFF, b = value & 0xFF;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int dr = ((rgb[i] >> 16) & 0xFF) - r;
+            int dg = ((rgb[i] >> 8) & 0xFF) - g;
+            int db = (rgb[i] & 0xFF) - b;
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int get(int value) {
+        int key = value + 1;
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void put(int value, int index) {
+        if ((keyCount + 1) * 2 > keys.length) {
+            int[] oldKeys = keys, oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        insert(value + 1, index);
+        keyCount++;
+    }
+
+    private void insert(int key, int index) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = index;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
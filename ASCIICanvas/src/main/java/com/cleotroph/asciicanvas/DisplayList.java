@@ -0,0 +1,316 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.Arrays;
+
+/**
+ * Recorded sequence of draw calls that can be replayed onto a canvas at any offset with
+ * {@link ASCIICanvas#drawList}. Commands are stored as an opcode followed by its int operands in one growing array.
+ * <p>
+ * Before the first replay the commands are compiled into the runs of cells they produce: rows and columns of one cell,
+ * filled rects and whole strings as glyph spans. Replaying then only clips those runs and writes each of them with one
+ * fill or copy per chunk it crosses. Lists start with the default brush (color 0, brush ' ', no background or
+ * attributes), replaying never changes the brush of the canvas. A list can be built and compiled on any thread and
+ * handed to the render thread through any safe publication, such as a volatile field or a concurrent queue, but must
+ * not be changed while it is replayed.
+ */
+public final class DisplayList {
+    // opcodes, followed by their operands
+    private static final int COLOR = 0;       // color
+    private static final int BACKGROUND = 1;  // background
+    private static final int ATTRIBUTES = 2;  // attributes
+    private static final int BRUSH = 3;       // brush
+    private static final int POINT = 4;       // x, y
+    private static final int LINE = 5;        // x, y, l, vertical
+    private static final int RECT = 6;        // x, y, w, h, filled
+    private static final int PERIMETER = 7;   // x, y, w, h
+    private static final int STRING = 8;      // x, y, length, one char per operand
+
+    // kinds of compiled runs, see runs
+    private static final int ROW = 0;
+    private static final int COLUMN = 1;
+    private static final int BLOCK = 2;
+    private static final int TEXT = 3;
+    private static final int RUN_INTS = 5;
+
+    private int[] commands = new int[64];
+    private int size;
+
+    // Compiled runs, null until compiled. Per run x, y, a, b and kind, and the cell it is filled with: ROW and COLUMN
+    // are a cells long, BLOCK is a by b cells and TEXT is the a glyphs of text from b, styled by the cell.
+    private int[] runs;
+    private long[] runCells;
+    private int runCount;
+    private String text;
+
+    // brush state while compiling
+    private int color, background = Cell.NO_BACKGROUND, attributes;
+    private char brush = ' ';
+
+    public void setColor(int color) {
+        add(COLOR, color);
+    }
+
+    /**
+     * @param background palette index, or {@link Cell#NO_BACKGROUND}.
+     */
+    public void setBackground(int background) {
+        add(BACKGROUND, background);
+    }
+
+    /**
+     * @param attributes combination of {@link Cell#BOLD} and {@link Cell#UNDERLINE}.
+     */
+    public void setAttributes(int attributes) {
+        add(ATTRIBUTES, attributes);
+    }
+
+    public void setBrush(char brush) {
+        add(BRUSH, brush);
+    }
+
+    public void point(int x, int y) {
+        add(POINT, x, y);
+    }
+
+    /**
+     * @see ASCIICanvas#line
+     */
+    public void line(int x, int y, int l, boolean vertical) {
+        add(LINE, x, y, l, vertical ? 1 : 0);
+    }
+
+    /**
+     * @see ASCIICanvas#rect
+     */
+    public void rect(int x, int y, int w, int h, boolean filled) {
+        add(RECT, x, y, w, h, filled ? 1 : 0);
+    }
+
+    /**
+     * @see ASCIICanvas#drawPerimeter
+     */
+    public void drawPerimeter(int x, int y, int w, int h) {
+        add(PERIMETER, x, y, w, h);
+    }
+
+    /**
+     * @see ASCIICanvas#drawString
+     */
+    public void drawString(String text, int x, int y) {
+        int p = reserve(4 + text.length());
+        commands[p + 1] = x;
+        commands[p + 2] = y;
+        commands[p + 3] = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            commands[p + 4 + i] = text.charAt(i);
+        }
+        commands[p] = STRING;
+    }
+
+    /**
+     * Removes every command so the list can be recorded again.
+     */
+    public void clear() {
+        size = 0;
+        runs = null;
+    }
+
+    /**
+     * @return true if no command was recorded.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Compiles the commands into runs of cells. Done by the first replay otherwise, call it to do the work on another
+     * thread before handing the list over.
+     */
+    public void compile() {
+        if (runs != null) {
+            return;
+        }
+        runs = new int[16 * RUN_INTS];
+        runCells = new long[16];
+        runCount = 0;
+        StringBuilder glyphs = new StringBuilder();
+        color = 0;
+        background = Cell.NO_BACKGROUND;
+        attributes = 0;
+        brush = ' ';
+
+        int[] c = commands;
+        for (int i = 0; i < size; ) {
+            switch (c[i]) {
+                case COLOR:
+                    color = c[i + 1];
+                    i += 2;
+                    break;
+                case BACKGROUND:
+                    background = c[i + 1];
+                    i += 2;
+                    break;
+                case ATTRIBUTES:
+                    attributes = c[i + 1];
+                    i += 2;
+                    break;
+                case BRUSH:
+                    brush = (char) c[i + 1];
+                    i += 2;
+                    break;
+                case POINT:
+                    addRun(ROW, c[i + 1], c[i + 2], 1, 0, brush);
+                    i += 3;
+                    break;
+                case LINE:
+                    addRun(c[i + 4] != 0 ? COLUMN : ROW, c[i + 1], c[i + 2], c[i + 3], 0, brush);
+                    i += 5;
+                    break;
+                case RECT:
+                    compileRect(c[i + 1], c[i + 2], c[i + 3], c[i + 4], c[i + 5] != 0);
+                    i += 6;
+                    break;
+                case PERIMETER:
+                    compilePerimeter(c[i + 1], c[i + 2], c[i + 3], c[i + 4]);
+                    i += 5;
+                    break;
+                case STRING:
+                    // one span of the list's text, styled like the brush
+                    addRun(TEXT, c[i + 1], c[i + 2], c[i + 3], glyphs.length(), (char) 0);
+                    for (int n = 0; n < c[i + 3]; n++) {
+                        glyphs.append((char) c[i + 4 + n]);
+                    }
+                    i += 4 + c[i + 3];
+                    break;
+                default:
+                    throw new IllegalStateException("unknown opcode " + c[i]);
+            }
+        }
+        text = glyphs.toString();
+    }
+
+    /**
+     * Draws the compiled runs into a frame, clipped to its bounds.
+     * @param frame frame to draw into.
+     * @param x offset added to every x.
+     * @param y offset added to every y.
+     */
+    void replay(CellFrame frame, int x, int y) {
+        compile();
+        int[] r = runs;
+        for (int i = 0, p = 0; i < runCount; i++, p += RUN_INTS) {
+            int rx = r[p] + x, ry = r[p + 1] + y, a = r[p + 2], b = r[p + 3];
+            switch (r[p + 4]) {
+                case ROW:
+                    if (ry >= 0 && ry < frame.height) {
+                        frame.fillRow(Math.max(0, rx), Math.min(frame.width, rx + a), ry, runCells[i]);
+                    }
+                    break;
+                case COLUMN:
+                    if (rx >= 0 && rx < frame.width) {
+                        frame.fillColumn(rx, Math.max(0, ry), Math.min(frame.height, ry + a), runCells[i]);
+                    }
+                    break;
+                case BLOCK:
+                    frame.fillRect(Math.max(0, rx), Math.max(0, ry), Math.min(frame.width, rx + a),
+                            Math.min(frame.height, ry + b), runCells[i]);
+                    break;
+                default:
+                    if (ry >= 0 && ry < frame.height) {
+                        int from = Math.max(0, -rx);
+                        int end = Math.min(frame.width, rx + a);
+                        if (rx + from < end) {
+                            frame.writeGlyphs(rx + from, ry, text, b + from, end - rx - from, runCells[i]);
+                        }
+                    }
+            }
+        }
+    }
+
+    private void compileRect(int x, int y, int w, int h, boolean filled) {
+        if (filled) {
+            if (h > 0) {
+                addRun(BLOCK, x, y, w, h, brush);
+            }
+        } else {
+            addRun(ROW, x, y, w, 0, brush);
+            addRun(COLUMN, x, y, h, 0, brush);
+            addRun(ROW, x, y + (h - 1), w, 0, brush);
+            addRun(COLUMN, x + (w - 1), y, h, 0, brush);
+        }
+    }
+
+    // Same cells as ASCIICanvas.drawPerimeter
+    private void compilePerimeter(int x, int y, int w, int h) {
+        addRun(ROW, x, y, w, 0, '═');
+        addRun(ROW, x, y + (h - 1), w, 0, '═');
+        addRun(COLUMN, x, y, h, 0, '║');
+        addRun(COLUMN, x + (w - 1), y, h, 0, '║');
+        addRun(ROW, x + w - 1, y, 1, 0, '╗');
+        addRun(ROW, x + w - 1, y + h - 1, 1, 0, '╝');
+        addRun(ROW, x, y, 1, 0, '╔');
+        addRun(ROW, x, y + h - 1, 1, 0, '╚');
+    }
+
+    // Appends a run filled with the glyph in the current brush style, the glyph is 0 for text runs
+    private void addRun(int kind, int x, int y, int a, int b, char glyph) {
+        if (a <= 0) {
+            return;
+        }
+        if (runCount == runCells.length) {
+            runCells = Arrays.copyOf(runCells, runCount * 2);
+            runs = Arrays.copyOf(runs, runCount * 2 * RUN_INTS);
+        }
+        int p = runCount * RUN_INTS;
+        runs[p] = x;
+        runs[p + 1] = y;
+        runs[p + 2] = a;
+        runs[p + 3] = b;
+        runs[p + 4] = kind;
+        runCells[runCount++] = Cell.pack(glyph, color, background, attributes);
+    }
+
+    // Appends an opcode and its operands, any compiled runs are dropped
+    private void add(int op, int a) {
+        int p = reserve(2);
+        commands[p + 1] = a;
+        commands[p] = op;
+    }
+
+    private void add(int op, int a, int b) {
+        int p = reserve(3);
+        commands[p + 1] = a;
+        commands[p + 2] = b;
+        commands[p] = op;
+    }
+
+    private void add(int op, int a, int b, int c, int d) {
+        int p = reserve(5);
+        commands[p + 1] = a;
+        commands[p + 2] = b;
+        commands[p + 3] = c;
+        commands[p + 4] = d;
+        commands[p] = op;
+    }
+
+    private void add(int op, int a, int b, int c, int d, int e) {
+        int p = reserve(6);
+        commands[p + 1] = a;
+        commands[p + 2] = b;
+        commands[p + 3] = c;
+        commands[p + 4] = d;
+        commands[p + 5] = e;
+        commands[p] = op;
+    }
+
+    // Makes room for n ints and returns where they start
+    private int reserve(int n) {
+        if (size + n > commands.length) {
+            commands = Arrays.copyOf(commands, Math.max(commands.length * 2, size + n));
+        }
+        int p = size;
+        size += n;
+        runs = null;
+        return p;
+    }
+}
@@ -0,0 +1,303 @@
+package com.cleotroph.asciicanvas;
+
+/**
+ * Brush and clip region of its own for drawing on a canvas from another thread, see
+ * {@link ASCIICanvas#createDrawContext} and {@link ASCIICanvas#renderParallel}. Each context only ever writes the
+ * cells inside its clip region, so contexts with disjoint regions can draw into the same frame at the same time
+ * without locks. A context itself is used by one thread at a time.
+ * <p>
+ * Coordinates are canvas coordinates, everything outside the clip region is cut off. Contexts draw wherever the canvas
+ * draws, the frame being rendered or the layer selected with drawTo, and every draw is also cut off at the edges of
+ * that target, so a region reaching past a smaller layer only draws the part inside it. Regions on multiples of 32
+ * cells never share a chunk of the frame with each other, which keeps threads off each other's cache lines.
+ */
+public final class DrawContext {
+    /**
+     * Draws one region of a frame, called on the thread rendering that region.
+     */
+    public interface Renderer {
+        void render(DrawContext context);
+    }
+
+    // canvas the context draws on, checked by renderParallel
+    final ASCIICanvas canvas;
+    private final Renderer renderer;
+
+    // clip region, [x0, x1) by [y0, y1), cut to the draw target on every draw
+    private int x0, y0, x1, y1;
+
+    // current draw state, and the packed cell it produces
+    private int color;
+    private char brush = ' ';
+    private int background = Cell.NO_BACKGROUND;
+    private int attributes;
+    private long brushCell = Cell.pack(' ', 0, Cell.NO_BACKGROUND, 0);
+
+    // run by renderParallel, records a failure for the render thread to rethrow
+    final Runnable task = this::run;
+    volatile Throwable failure;
+
+    DrawContext(ASCIICanvas canvas, int x, int y, int w, int h, Renderer renderer) {
+        this.canvas = canvas;
+        this.renderer = renderer;
+        setClip(x, y, w, h);
+    }
+
+    private void run() {
+        try {
+            if (renderer == null) {
+                throw new IllegalStateException("draw context has no renderer");
+            }
+            renderer.render(this);
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            canvas.regionDone();
+        }
+    }
+
+    /**
+     * Sets the region this context draws into. Draws are further cut off at the edges of the frame or layer drawn
+     * into.
+     * @param x x of the top left of the region.
+     * @param y y of the top left of the region.
+     * @param w width of the region.
+     * @param h height of the region.
+     */
+    public void setClip(int x, int y, int w, int h) {
+        x0 = Math.max(0, x);
+        y0 = Math.max(0, y);
+        x1 = Math.max(x0, x + w);
+        y1 = Math.max(y0, y + h);
+    }
+
+    public int getClipX() {
+        return x0;
+    }
+
+    public int getClipY() {
+        return y0;
+    }
+
+    public int getClipWidth() {
+        return x1 - x0;
+    }
+
+    public int getClipHeight() {
+        return y1 - y0;
+    }
+
+    /**
+     * set brush color for draw operations. RGB colors must be turned into indices with colorIndex() on the render
+     * thread, the palette is not thread safe.
+     * @param color_in index of color.
+     */
+    public void setColor(int color_in) {
+        color = color_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * set brush background color for draw operations.
+     * @param background_in index of color, or Cell.NO_BACKGROUND to leave the background empty.
+     */
+    public void setBackground(int background_in) {
+        background = background_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * set brush attributes for draw operations.
+     * @param attributes_in combination of Cell.BOLD and Cell.UNDERLINE, 0 for none.
+     */
+    public void setAttributes(int attributes_in) {
+        attributes = attributes_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * set the brush character for draw operations.
+     * @param brush_in character to draw.
+     */
+    public void setBrush(char brush_in) {
+        brush = brush_in;
+        brushCell = Cell.pack(brush, color, background, attributes);
+    }
+
+    /**
+     * Empties every cell of the clip region.
+     */
+    public void clear() {
+        CellFrame target = canvas.drawTarget();
+        int cx1 = Math.min(x1, target.width);
+        int cy1 = Math.min(y1, target.height);
+        for (int y = y0; y < cy1; y++) {
+            target.fillRow(x0, cx1, y, 0L);
+        }
+    }
+
+    /**
+     * Draws a vertical or horizontal line using the brush settings.
+     * @param x x position of top/left.
+     * @param y y position of top/left.
+     * @param l length, extends towards positive x/y depending on orientation.
+     * @param vertical orientation of the line, true for vertical, false for horizontal.
+     */
+    public void line(int x, int y, int l, boolean vertical) {
+        CellFrame target = canvas.drawTarget();
+        int cx1 = Math.min(x1, target.width);
+        int cy1 = Math.min(y1, target.height);
+        if (vertical) {
+            if (x < x0 || x >= cx1) {
+                return;
+            }
+            target.fillColumn(x, Math.max(y0, y), Math.min(cy1, y + l), brushCell);
+        } else {
+            if (y < y0 || y >= cy1) {
+                return;
+            }
+            target.fillRow(Math.max(x0, x), Math.min(cx1, x + l), y, brushCell);
+        }
+    }
+
+    /**
+     * Fills a region with the brush settings.
+     * @param x x position of top/left.
+     * @param y y position of top/left.
+     * @param w width of rect.
+     * @param h height of rect.
+     * @param filled whether or not the interior is filled (false for only the border).
+     */
+    public void rect(int x, int y, int w, int h, boolean filled) {
+        if (filled) {
+            CellFrame target = canvas.drawTarget();
+            target.fillRect(Math.max(x0, x), Math.max(y0, y), Math.min(Math.min(x1, target.width), x + w),
+                    Math.min(Math.min(y1, target.height), y + h), brushCell);
+        } else {
+            line(x, y, w, false);
+            line(x, y, h, true);
+            line(x, y + (h - 1), w, false);
+            line(x + (w - 1), y, h, true);
+        }
+    }
+
+    /**
+     * Paints a single point with the brush settings.
+     * @param x x of point.
+     * @param y y of point.
+     */
+    public void point(int x, int y) {
+        CellFrame target = canvas.drawTarget();
+        if (x >= x0 && x < Math.min(x1, target.width) && y >= y0 && y < Math.min(y1, target.height)) {
+            target.set(target.index(x, y), brushCell);
+        }
+    }
+
+    /**
+     * Draws a string on one row with the brush color, background and attributes, clipped to the region.
+     * @param text characters to draw, one cell each.
+     * @param x x of the first character.
+     * @param y y of the row.
+     */
+    public void drawString(String text, int x, int y) {
+        CellFrame target = canvas.drawTarget();
+        if (y < y0 || y >= Math.min(y1, target.height)) {
+            return;
+        }
+        int from = Math.max(0, x0 - x);
+        int end = Math.min(Math.min(x1, target.width), x + text.length());
+        if (x + from < end) {
+            target.writeGlyphs(x + from, y, text, from, end - x - from, brushCell & ~0xFFFFL);
+        }
+    }
+
+    /**
+     * Draws a sprite of glyphs, each with its own color, using the brush background and attributes.
+     * @param x x of the top left of the sprite.
+     * @param y y of the top left of the sprite.
+     * @param w width of the sprite.
+     * @param h height of the sprite.
+     * @param glyphs w * h characters, row by row.
+     * @param colors w * h color indices, row by row.
+     */
+    public void drawSprite(int x, int y, int w, int h, char[] glyphs, int[] colors) {
+        blitSprite(x, y, w, h, glyphs, colors, -1);
+    }
+
+    /**
+     * Draws a sprite like {@link #drawSprite(int, int, int, int, char[], int[])}, leaving the cells holding the
+     * transparent glyph untouched.
+     * @param x x of the top left of the sprite.
+     * @param y y of the top left of the sprite.
+     * @param w width of the sprite.
+     * @param h height of the sprite.
+     * @param glyphs w * h characters, row by row.
+     * @param colors w * h color indices, row by row.
+     * @param transparent glyph that is not drawn.
+     */
+    public void drawSprite(int x, int y, int w, int h, char[] glyphs, int[] colors, char transparent) {
+        blitSprite(x, y, w, h, glyphs, colors, transparent);
+    }
+
+    /**
+     * Copies a block of packed cells (see Cell.pack) onto the region row by row, empty cells included.
+     * @param x x of the top left of the block.
+     * @param y y of the top left of the block.
+     * @param w width of the block.
+     * @param h height of the block.
+     * @param cells w * h packed cells, row by row.
+     */
+    public void drawCells(int x, int y, int w, int h, long[] cells) {
+        CellFrame target = canvas.drawTarget();
+        int from = Math.max(0, x0 - x);
+        int end = Math.min(Math.min(x1, target.width), x + w);
+        int endY = Math.min(Math.min(y1, target.height), y + h);
+        if (x + from >= end) {
+            return;
+        }
+        for (int iy = Math.max(y0, y); iy < endY; iy++) {
+            target.writeCells(x + from, iy, cells, (iy - y) * w + from, end - x - from);
+        }
+    }
+
+    // Clips a sprite once and writes it a row at a time, transparent is -1 to draw every glyph
+    private void blitSprite(int x, int y, int w, int h, char[] glyphs, int[] colors, int transparent) {
+        CellFrame target = canvas.drawTarget();
+        int from = Math.max(0, x0 - x);
+        int end = Math.min(Math.min(x1, target.width), x + w);
+        int endY = Math.min(Math.min(y1, target.height), y + h);
+        if (x + from >= end) {
+            return;
+        }
+        long style = brushCell & ~0xFFFFFFFFL;
+        for (int iy = Math.max(y0, y); iy < endY; iy++) {
+            target.writeSprite(x + from, iy, glyphs, colors, (iy - y) * w + from, end - x - from, style, transparent);
+        }
+    }
+
+    /**
+     * draws an unfilled rect using ASCII border chars
+     * @param x x position of top/left.
+     * @param y y position of top/left.
+     * @param w width of rect.
+     * @param h height of rect.
+     */
+    public void drawPerimeter(int x, int y, int w, int h) {
+        char brushMemory = brush;
+        setBrush('═');
+        line(x, y, w, false);
+        line(x, y + (h - 1), w, false);
+        setBrush('║');
+        line(x, y, h, true);
+        line(x + (w - 1), y, h, true);
+        setBrush('╗');
+        point(x + w - 1, y);
+        setBrush('╝');
+        point(x + w - 1, y + h - 1);
+        setBrush('╔');
+        point(x, y);
+        setBrush('╚');
+        point(x, y + h - 1);
+        setBrush(brushMemory);
+    }
+}
@@ -0,0 +1,168 @@
+package com.cleotroph.asciicanvas;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Run length encoding of the cells that changed between two frames, shared by recordings and anything else that ships
+ * frames as deltas. Cells are visited in frame chunk order and every run stays within one chunk:
+ * <pre>
+ * SKIP n          n unchanged cells
+ * LITERAL n c*n   n changed cells, 8 bytes each
+ * REPEAT n c      n changed cells holding the same value
+ * </pre>
+ * Opcodes are one byte, counts are unsigned varints and cells little endian longs. A keyframe is encoded against an
+ * empty frame, so it can be decoded on its own.
+ */
+final class FrameCodec {
+    static final byte SKIP = 0;
+    static final byte LITERAL = 1;
+    static final byte REPEAT = 2;
+
+    // runs of at least this many equal cells are repeated rather than spelled out
+    private static final int MIN_REPEAT = 3;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Largest encoding of a frame, what the output buffer must have room for.
+     * @param frame frame that will be encoded.
+     * @return bytes.
+     */
+    static int maxEncodedSize(CellFrame frame) {
+        // a literal of every cell, plus one opcode and count per chunk
+        return frame.cells.length * Long.BYTES + frame.touched.length * 8;
+    }
+
+    /**
+     * Encodes the changes from previous to frame.
+     * @param frame new frame.
+     * @param previous frame the decoder will hold, of the same size, or null to encode a keyframe.
+     * @param out buffer receiving the encoding, little endian, with at least {@link #maxEncodedSize} bytes left.
+     */
+    static void encode(CellFrame frame, CellFrame previous, ByteBuffer out) {
+        long[] cells = frame.cells;
+        long[] old = previous == null ? null : previous.cells;
+        int skip = 0;
+        for (int c = 0; c < frame.touched.length; c++) {
+            int from = c * CellFrame.CHUNK_CELLS;
+            int to = from + CellFrame.CHUNK_CELLS;
+            if (!frame.touched[c] && (previous == null || !previous.touched[c])) {
+                skip += CellFrame.CHUNK_CELLS;
+                continue;
+            }
+            int i = from;
+            while (i < to) {
+                long cell = cells[i];
+                if (cell == (old == null ? 0 : old[i])) {
+                    skip++;
+                    i++;
+                    continue;
+                }
+                if (skip > 0) {
+                    out.put(SKIP);
+                    putCount(out, skip);
+                    skip = 0;
+                }
+
+                int r = i + 1;
+                while (r < to && cells[r] == cell && changed(cells, old, r)) {
+                    r++;
+                }
+                if (r - i >= MIN_REPEAT) {
+                    out.put(REPEAT);
+                    putCount(out, r - i);
+                    out.putLong(cell);
+                    i = r;
+                    continue;
+                }
+
+                // literal up to the next unchanged cell or the start of a repeat
+                int l = i + 1;
+                while (l < to && changed(cells, old, l) && !repeatsAt(cells, old, l, to)) {
+                    l++;
+                }
+                out.put(LITERAL);
+                putCount(out, l - i);
+                for (; i < l; i++) {
+                    out.putLong(cells[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies an encoding to a frame.
+     * @param in buffer positioned at the encoding, little endian.
+     * @param end position the encoding ends at.
+     * @param frame frame holding the previous state, or any frame for a keyframe.
+     * @param keyframe true to empty the frame first.
+     */
+    static void decode(ByteBuffer in, int end, CellFrame frame, boolean keyframe) {
+        if (keyframe) {
+            frame.clear();
+        }
+        long[] cells = frame.cells;
+        int pos = 0;
+        while (in.position() < end) {
+            byte op = in.get();
+            int n = getCount(in);
+            switch (op) {
+                case SKIP:
+                    pos += n;
+                    break;
+                case LITERAL:
+                    for (int i = 0; i < n; i++) {
+                        cells[pos + i] = in.getLong();
+                    }
+                    frame.touched[pos >> (CellFrame.CHUNK_SHIFT * 2)] = true;
+                    pos += n;
+                    break;
+                case REPEAT:
+                    Arrays.fill(cells, pos, pos + n, in.getLong());
+                    frame.touched[pos >> (CellFrame.CHUNK_SHIFT * 2)] = true;
+                    pos += n;
+                    break;
+                default:
+                    throw new IllegalStateException("corrupt frame encoding, opcode " + op);
+            }
+        }
+    }
+
+    private static boolean changed(long[] cells, long[] old, int i) {
+        return cells[i] != (old == null ? 0 : old[i]);
+    }
+
+    // Whether a run of MIN_REPEAT changed equal cells starts at i
+    private static boolean repeatsAt(long[] cells, long[] old, int i, int to) {
+        if (i + MIN_REPEAT > to) {
+            return false;
+        }
+        for (int k = 1; k < MIN_REPEAT; k++) {
+            if (cells[i + k] != cells[i] || !changed(cells, old, i + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putCount(ByteBuffer out, int n) {
+        while (n >= 0x80) {
+            out.put((byte) (n | 0x80));
+            n >>>= 7;
+        }
+        out.put((byte) n);
+    }
+
+    private static int getCount(ByteBuffer in) {
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            n |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+    }
+}
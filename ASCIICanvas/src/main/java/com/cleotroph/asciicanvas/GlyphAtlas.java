@@ -0,0 +1,167 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Cache of pre-rasterized glyph tiles. Each distinct packed cell (character, palette colors and attributes) is drawn
+ * once into a cell sized image at the atlas font size, so presenting a frame is reduced to image blits. Least recently
+ * used tiles are evicted once the configured memory limit is reached. Lookups are synchronized so parallel rasterizer
+ * bands can share one atlas.
+ */
+class GlyphAtlas {
+    // default tile memory budget in bytes
+    static final long DEFAULT_MEMORY_LIMIT = 16L * 1024 * 1024;
+
+    // font and cell size the tiles are rasterized with
+    private final Font font;
+    private final int size;
+    private final int baseline;
+
+    // maximum number of tiles held at once, derived from the memory limit
+    private final int capacity;
+
+    // tile slots, keyed by packed cell
+    private final long[] keys;
+    private final BufferedImage[] tiles;
+
+    // hash buckets (slot + 1, 0 is empty) and per slot chain links
+    private final int[] buckets;
+    private final int[] chain;
+
+    // recency list, newest at the head
+    private final int[] newer;
+    private final int[] older;
+    private int newest = -1;
+    private int oldest = -1;
+    private int count;
+
+    /**
+     * @param font font to rasterize with.
+     * @param size width and height of a cell in pixels.
+     * @param memoryLimit maximum bytes of tile memory to keep.
+     */
+    GlyphAtlas(Font font, int size, long memoryLimit) {
+        this.font = font;
+        this.size = size;
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics g = probe.getGraphics();
+        baseline = size - g.getFontMetrics(font).getDescent();
+        g.dispose();
+
+        long tileBytes = (long) size * size * 4;
+        capacity = (int) Math.max(1, Math.min(1 << 20, memoryLimit / tileBytes));
+        keys = new long[capacity];
+        tiles = new BufferedImage[capacity];
+        buckets = new int[Integer.highestOneBit(capacity) << 1];
+        chain = new int[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+    }
+
+    /**
+     * Obtain the tile for a cell, rasterizing it on first use.
+     * @param key packed cell, see {@link Cell}.
+     * @param palette colors the cell indices refer to.
+     * @return opaque cell sized tile.
+     */
+    synchronized BufferedImage get(long key, Color[] palette) {
+        int bucket = hash(key);
+        for (int slot = buckets[bucket] - 1; slot >= 0; slot = chain[slot] - 1) {
+            if (keys[slot] == key) {
+                touch(slot);
+                return tiles[slot];
+            }
+        }
+
+        int slot;
+        if (count < capacity) {
+            slot = count++;
+        } else {
+            slot = oldest;
+            unlink(slot);
+            removeFromBucket(slot);
+        }
+        keys[slot] = key;
+        tiles[slot] = rasterize(key, palette);
+        chain[slot] = buckets[bucket];
+        buckets[bucket] = slot + 1;
+        pushNewest(slot);
+        return tiles[slot];
+    }
+
+    private BufferedImage rasterize(long cell, Color[] palette) {
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics g = tile.getGraphics();
+        int background = Cell.background(cell);
+        if (background != Cell.NO_BACKGROUND) {
+            g.setColor(palette[background]);
+            g.fillRect(0, 0, size, size);
+        }
+
+        int attributes = Cell.attributes(cell);
+        char[] glyph = {Cell.glyph(cell)};
+        g.setFont(font);
+        g.setColor(palette[Cell.foreground(cell)]);
+        g.drawChars(glyph, 0, 1, 0, baseline);
+        if ((attributes & Cell.BOLD) != 0) {
+            g.drawChars(glyph, 0, 1, 1, baseline);
+        }
+        if ((attributes & Cell.UNDERLINE) != 0) {
+            g.fillRect(0, baseline + 1, size, Math.max(1, size / 16));
+        }
+        g.dispose();
+        return tile;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (buckets.length - 1);
+    }
+
+    private void removeFromBucket(int slot) {
+        int bucket = hash(keys[slot]);
+        if (buckets[bucket] == slot + 1) {
+            buckets[bucket] = chain[slot];
+            return;
+        }
+        for (int s = buckets[bucket] - 1; s >= 0; s = chain[s] - 1) {
+            if (chain[s] == slot + 1) {
+                chain[s] = chain[slot];
+                return;
+            }
+        }
+    }
+
+    private void touch(int slot) {
+        if (slot != newest) {
+            unlink(slot);
+            pushNewest(slot);
+        }
+    }
+
+    private void pushNewest(int slot) {
+        newer[slot] = -1;
+        older[slot] = newest;
+        if (newest >= 0) {
+            newer[newest] = slot;
+        }
+        newest = slot;
+        if (oldest < 0) {
+            oldest = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        if (newer[slot] >= 0) {
+            older[newer[slot]] = older[slot];
+        } else {
+            newest = older[slot];
+        }
+        if (older[slot] >= 0) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            oldest = newer[slot];
+        }
+    }
+}
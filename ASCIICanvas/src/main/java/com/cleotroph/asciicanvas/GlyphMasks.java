@@ -0,0 +1,113 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Coverage masks of the glyphs of one font, extracted once per glyph and shared by every color the glyph is drawn in.
+ * Masks are cell sized, one byte of coverage per pixel, so glyphs can be written straight into a pixel array.
+ */
+class GlyphMasks {
+    // glyphs are looked up through pages of 256, allocated on first use
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final Font font;
+    private final int size;
+    private final int baseline;
+
+    // pages for regular and bold glyphs
+    private final Mask[][] pages = new Mask[2 << (16 - PAGE_SHIFT)][];
+
+    /**
+     * @param font font to extract glyphs from.
+     * @param size width and height of a cell in pixels.
+     */
+    GlyphMasks(Font font, int size) {
+        this.font = font;
+        this.size = size;
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics g = probe.getGraphics();
+        baseline = size - g.getFontMetrics(font).getDescent();
+        g.dispose();
+    }
+
+    /**
+     * Obtain the mask of a glyph, extracting it on first use.
+     * @param c character to draw.
+     * @param bold true for the heavier bold stroke.
+     * @return mask, or null if the font cannot draw the glyph and it must go through the text fallback.
+     */
+    Mask get(char c, boolean bold) {
+        int key = bold ? c | 1 << 16 : c;
+        Mask[] page = pages[key >> PAGE_SHIFT];
+        Mask mask = page == null ? null : page[key & (PAGE_SIZE - 1)];
+        if (mask == null) {
+            mask = extract(c, bold, key);
+        }
+        return mask == Mask.UNSUPPORTED ? null : mask;
+    }
+
+    // Baseline of glyphs within a cell, underlines are drawn just below it
+    int baseline() {
+        return baseline;
+    }
+
+    private synchronized Mask extract(char c, boolean bold, int key) {
+        Mask[] page = pages[key >> PAGE_SHIFT];
+        if (page == null) {
+            page = new Mask[PAGE_SIZE];
+            pages[key >> PAGE_SHIFT] = page;
+        }
+        Mask mask = page[key & (PAGE_SIZE - 1)];
+        if (mask != null) {
+            return mask;
+        }
+
+        if (Character.isSurrogate(c) || !font.canDisplay(c)) {
+            mask = Mask.UNSUPPORTED;
+        } else {
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics g = image.getGraphics();
+            char[] glyph = {c};
+            g.setFont(font);
+            g.setColor(Color.WHITE);
+            g.drawChars(glyph, 0, 1, 0, baseline);
+            if (bold) {
+                g.drawChars(glyph, 0, 1, 1, baseline);
+            }
+            g.dispose();
+            mask = new Mask(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        }
+        page[key & (PAGE_SIZE - 1)] = mask;
+        return mask;
+    }
+
+    /**
+     * Coverage of one glyph, row major, 0 for background and 255 for foreground.
+     */
+    static final class Mask {
+        // marks glyphs the font cannot draw
+        static final Mask UNSUPPORTED = new Mask(new byte[0]);
+
+        final byte[] coverage;
+
+        // true when every pixel is either fully covered or not covered at all
+        final boolean solid;
+
+        // true when no pixel is covered, the cell is only background
+        final boolean empty;
+
+        Mask(byte[] coverage) {
+            this.coverage = coverage;
+            boolean allSolid = true, allEmpty = true;
+            for (byte b : coverage) {
+                allSolid &= b == 0 || b == (byte) 0xFF;
+                allEmpty &= b == 0;
+            }
+            solid = allSolid;
+            empty = allEmpty;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Offscreen backend that rasterizes frames into a {@link BufferedImage}. Needs no display, so it works with
+ * {@code java.awt.headless=true} for CI rendering, golden image comparisons and rasterizer throughput measurements.
+ */
+public class ImageBackend implements RenderBackend {
+    private final CellRasterizer rasterizer;
+    private final int width, height;
+
+    // image the last frame was rasterized into
+    private volatile BufferedImage image;
+    private volatile long framesPresented;
+
+    /**
+     * @param cx character width of the frames that will be presented.
+     * @param cy character height of the frames that will be presented.
+     * @param size size of characters in pixels.
+     */
+    public ImageBackend(int cx, int cy, int size) {
+        rasterizer = new CellRasterizer(size);
+        width = cx * size;
+        height = cy * size;
+    }
+
+    @Override
+    public synchronized void present(CellFrame frame, Color[] palette) {
+        image = rasterizer.rasterize(frame, palette);
+        framesPresented++;
+    }
+
+    @Override
+    public synchronized void warmUp(int columns, int rows) {
+        rasterizer.warmUp(columns, rows);
+    }
+
+    /**
+     * The image is updated in place by every present, copy it if it must outlive the next frame.
+     * @return image holding the last presented frame, null before the first frame.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Copies the last presented frame, safe to call while frames are still being presented.
+     * @return copy of the image, null before the first frame.
+     */
+    public synchronized BufferedImage snapshot() {
+        if (image == null) {
+            return null;
+        }
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        copy.getGraphics().drawImage(image, 0, 0, null);
+        return copy;
+    }
+
+    /**
+     * @return number of frames presented so far.
+     */
+    public long getFramesPresented() {
+        return framesPresented;
+    }
+
+    /**
+     * @return rasterizer settings and redraw counters.
+     */
+    public CellRasterizer getRasterizer() {
+        return rasterizer;
+    }
+
+    @Override
+    public int getSurfaceWidth() {
+        return width;
+    }
+
+    @Override
+    public int getSurfaceHeight() {
+        return height;
+    }
+}
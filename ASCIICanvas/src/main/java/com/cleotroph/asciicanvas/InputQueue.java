@@ -0,0 +1,107 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of key events, each packed into a long with the {@link System#nanoTime()} it
+ * was queued at. The producer is the AWT event thread, the consumer the thread running ticks. Neither side locks or
+ * allocates, events offered while the ring is full are dropped and counted.
+ * <p>
+ * Packed events hold the key code in bits 0-31, the key char in bits 32-47, the extended modifiers in bits 48-61 and
+ * the event type in bits 62-63.
+ */
+final class InputQueue {
+    static final int PRESSED = 0;
+    static final int RELEASED = 1;
+    static final int TYPED = 2;
+
+    /**
+     * Receives drained events.
+     */
+    interface Sink {
+        void event(long nanos, long packed);
+    }
+
+    // two longs per event, stamp then packed event
+    private final long[] ring;
+    private final int mask;
+
+    // Events are read from head and written at tail. Each index is only written by its own side, lazySet publishes
+    // the slots written before it.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity events the ring holds, rounded up to a power of two.
+     */
+    InputQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new long[size * 2];
+        mask = size - 1;
+    }
+
+    static long pack(int type, int keyCode, char keyChar, int modifiers) {
+        return (keyCode & 0xFFFFFFFFL) | (long) keyChar << 32 | (long) (modifiers & 0x3FFF) << 48 | (long) type << 62;
+    }
+
+    static int typeOf(long packed) {
+        return (int) (packed >>> 62);
+    }
+
+    static int keyCodeOf(long packed) {
+        return (int) packed;
+    }
+
+    static char keyCharOf(long packed) {
+        return (char) (packed >>> 32);
+    }
+
+    static int modifiersOf(long packed) {
+        return (int) (packed >>> 48) & 0x3FFF;
+    }
+
+    /**
+     * Queues an event, producer side only.
+     * @param packed event, see {@link #pack}.
+     * @return false if the ring was full and the event was dropped.
+     */
+    boolean offer(long packed) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) (t & mask) << 1;
+        ring[slot] = System.nanoTime();
+        ring[slot + 1] = packed;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Hands every queued event to a sink in the order they were offered, consumer side only.
+     * @param sink receives the events.
+     * @return number of events drained.
+     */
+    int drain(Sink sink) {
+        long h = head.get();
+        long t = tail.get();
+        if (h == t) {
+            return 0;
+        }
+        for (long i = h; i != t; i++) {
+            int slot = (int) (i & mask) << 1;
+            sink.event(ring[slot], ring[slot + 1]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    /**
+     * @return events dropped because the ring was full.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
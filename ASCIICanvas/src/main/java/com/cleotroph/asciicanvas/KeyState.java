@@ -0,0 +1,105 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.Arrays;
+
+/**
+ * Key state seen by ticks, built from the events drained from an {@link InputQueue} before each tick. Key codes are
+ * tracked in bit sets up to 0xFFFF, codes above that only show up in the typed text and legacy listeners.
+ */
+final class KeyState {
+    private static final int CODES = 1 << 16;
+
+    private final long[] down = new long[CODES >> 6];
+    private final long[] pressed = new long[CODES >> 6];
+    private final long[] released = new long[CODES >> 6];
+
+    // codes set in pressed or released since the last tick, so only those words are cleared
+    private final int[] changed;
+    private int changedCount;
+    // set when more codes changed than fit, everything is cleared instead
+    private boolean overflowed;
+
+    // chars typed since the last tick, room for a full ring so appending never grows it
+    private final StringBuilder typed;
+
+    /**
+     * @param capacity events that can arrive between two ticks.
+     */
+    KeyState(int capacity) {
+        changed = new int[capacity];
+        typed = new StringBuilder(capacity);
+    }
+
+    // Forgets the presses, releases and typed chars of the previous tick
+    void beginTick() {
+        if (overflowed) {
+            Arrays.fill(pressed, 0);
+            Arrays.fill(released, 0);
+            overflowed = false;
+        }
+        for (int i = 0; i < changedCount; i++) {
+            int word = changed[i] >>> 6;
+            pressed[word] = 0;
+            released[word] = 0;
+        }
+        changedCount = 0;
+        typed.setLength(0);
+    }
+
+    void apply(long packed) {
+        int code = InputQueue.keyCodeOf(packed);
+        switch (InputQueue.typeOf(packed)) {
+            case InputQueue.PRESSED:
+                if (code >= 0 && code < CODES) {
+                    set(down, code);
+                    set(pressed, code);
+                    changed(code);
+                }
+                break;
+            case InputQueue.RELEASED:
+                if (code >= 0 && code < CODES) {
+                    down[code >>> 6] &= ~(1L << code);
+                    set(released, code);
+                    changed(code);
+                }
+                break;
+            default:
+                if (typed.length() < typed.capacity()) {
+                    typed.append(InputQueue.keyCharOf(packed));
+                }
+                break;
+        }
+    }
+
+    boolean isDown(int code) {
+        return test(down, code);
+    }
+
+    boolean wasPressed(int code) {
+        return test(pressed, code);
+    }
+
+    boolean wasReleased(int code) {
+        return test(released, code);
+    }
+
+    CharSequence typed() {
+        return typed;
+    }
+
+    private void changed(int code) {
+        if (changedCount < changed.length) {
+            changed[changedCount++] = code;
+        } else {
+            overflowed = true;
+        }
+    }
+
+    private static void set(long[] bits, int code) {
+        bits[code >>> 6] |= 1L << code;
+    }
+
+    private static boolean test(long[] bits, int code) {
+        return code >= 0 && code < CODES && (bits[code >>> 6] & (1L << code)) != 0;
+    }
+}
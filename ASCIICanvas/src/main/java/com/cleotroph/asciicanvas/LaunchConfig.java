@@ -0,0 +1,118 @@
+package com.cleotroph.asciicanvas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Window and grid settings a canvas is launched with, in place of the choices made in a {@link PreLauncher}. Read from
+ * system properties or a properties file with the keys below, system properties win over the file:
+ * <pre>
+ * asciicanvas.width        window width in pixels
+ * asciicanvas.height       window height in pixels
+ * asciicanvas.cx           canvas width in characters
+ * asciicanvas.cy           canvas height in characters
+ * asciicanvas.size         character size in pixels
+ * asciicanvas.fullscreen   true or false
+ * asciicanvas.config       path of a properties file holding the keys above
+ * </pre>
+ */
+public class LaunchConfig {
+    private static final String PREFIX = "asciicanvas.";
+    private static final String[] KEYS = {"width", "height", "cx", "cy", "size", "fullscreen"};
+
+    final int width, height;
+    final int cx, cy;
+    final int size;
+    final boolean fullScreen;
+
+    /**
+     * @param width window width in pixels.
+     * @param height window height in pixels.
+     * @param cx canvas width in characters.
+     * @param cy canvas height in characters.
+     * @param size character size in pixels.
+     * @param fullScreen true for an undecorated maximized window.
+     */
+    public LaunchConfig(int width, int height, int cx, int cy, int size, boolean fullScreen) {
+        this.width = width;
+        this.height = height;
+        this.cx = cx;
+        this.cy = cy;
+        this.size = size;
+        this.fullScreen = fullScreen;
+    }
+
+    /**
+     * Reads a configuration from the system properties and the file named by {@code asciicanvas.config}, settings
+     * that are not given keep the defaults of the prelauncher (1920x1080, 96x54 characters of 20 pixels, fullscreen).
+     * @return configuration, or null if neither any setting nor a config file is given.
+     * @throws UncheckedIOException if the config file cannot be read.
+     */
+    public static LaunchConfig fromSystemProperties() {
+        Properties settings = new Properties();
+        String file = System.getProperty(PREFIX + "config");
+        if (file != null) {
+            settings.putAll(readFile(Paths.get(file)));
+        }
+        for (String key : KEYS) {
+            String value = System.getProperty(PREFIX + key);
+            if (value != null) {
+                settings.setProperty(PREFIX + key, value);
+            }
+        }
+        return file == null && settings.isEmpty() ? null : of(settings);
+    }
+
+    /**
+     * Reads a configuration from a properties file, missing settings keep the prelauncher defaults.
+     * @param file properties file.
+     * @return configuration.
+     * @throws UncheckedIOException if the file cannot be read.
+     */
+    public static LaunchConfig fromFile(Path file) {
+        return of(readFile(file));
+    }
+
+    private static Properties readFile(Path file) {
+        Properties settings = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            settings.load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot read launch config " + file, e);
+        }
+        return settings;
+    }
+
+    private static LaunchConfig of(Properties settings) {
+        return new LaunchConfig(
+                intOf(settings, "width", 1920),
+                intOf(settings, "height", 1080),
+                intOf(settings, "cx", 96),
+                intOf(settings, "cy", 54),
+                intOf(settings, "size", 20),
+                Boolean.parseBoolean(settings.getProperty(PREFIX + "fullscreen", "true").trim()));
+    }
+
+    private static int intOf(Properties settings, String key, int fallback) {
+        String value = settings.getProperty(PREFIX + key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(PREFIX + key + " is not a number: " + value, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + (fullScreen ? " fullscreen" : " windowed") + ", " + cx + "x" + cy
+                + " characters of " + size + "px";
+    }
+}
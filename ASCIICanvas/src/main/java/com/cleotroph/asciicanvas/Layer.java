@@ -0,0 +1,126 @@
+package com.cleotroph.asciicanvas;
+
+/**
+ * Independent plane of cells composited under the canvas, see {@link ASCIICanvas#addLayer}. Layers are stacked by z
+ * order, can be hidden and moved, and empty cells let the layers below show through. Layers keep track of the chunks
+ * drawn to since they were last composited, so a layer that does not change costs nothing per frame.
+ * <p>
+ * Draw into a layer with {@link ASCIICanvas#drawTo} or {@link #drawList}. Layers should only be changed from the
+ * render thread.
+ */
+public class Layer {
+    // cells of the layer, tracking which chunks changed
+    final CellFrame plane;
+
+    private int z;
+    private boolean visible = true;
+    private int x, y;
+
+    // set when the layer moved, was hidden or shown, or changed z, so everything it covers must be composited again
+    boolean moved = true;
+
+    /**
+     * @param width width in characters, may be larger than the canvas.
+     * @param height height in characters, may be larger than the canvas.
+     */
+    public Layer(int width, int height) {
+        plane = new CellFrame(width, height, true);
+    }
+
+    /**
+     * @param width width in characters.
+     * @param height height in characters.
+     * @param z stacking order, higher layers cover lower ones.
+     */
+    public Layer(int width, int height, int z) {
+        this(width, height);
+        this.z = z;
+    }
+
+    public int getWidth() {
+        return plane.width;
+    }
+
+    public int getHeight() {
+        return plane.height;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * @param z stacking order, higher layers cover lower ones. Layers with the same z keep the order they were added
+     * in.
+     */
+    public void setZ(int z) {
+        if (this.z != z) {
+            this.z = z;
+            moved = true;
+        }
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        if (this.visible != visible) {
+            this.visible = visible;
+            moved = true;
+        }
+    }
+
+    /**
+     * @return x of the layer's top left cell on the canvas.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return y of the layer's top left cell on the canvas.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Moves the layer, for example to scroll a map larger than the canvas.
+     * @param x x of the layer's top left cell on the canvas.
+     * @param y y of the layer's top left cell on the canvas.
+     */
+    public void setOffset(int x, int y) {
+        if (this.x != x || this.y != y) {
+            this.x = x;
+            this.y = y;
+            moved = true;
+        }
+    }
+
+    /**
+     * Empties every cell of the layer.
+     */
+    public void clear() {
+        plane.clear();
+    }
+
+    /**
+     * Replays a display list into the layer.
+     * @param list list to replay.
+     * @param x x offset within the layer.
+     * @param y y offset within the layer.
+     */
+    public void drawList(DisplayList list, int x, int y) {
+        list.replay(plane, x, y);
+    }
+
+    /**
+     * @param x x within the layer.
+     * @param y y within the layer.
+     * @return packed cell at (x, y), 0 for an empty cell.
+     */
+    public long cellAt(int x, int y) {
+        return plane.cellAt(x, y);
+    }
+}
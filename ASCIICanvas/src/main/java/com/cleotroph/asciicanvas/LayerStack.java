@@ -0,0 +1,176 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Layers of a canvas and their composite. Only the canvas chunks that a layer changed are composited again, the
+ * composite is then laid under every frame just before it is published. A frame kept with syncBuffer is carried over
+ * from a copy taken before the composite was laid under it, so layers that changed leave nothing behind.
+ */
+class LayerStack {
+    private static final Comparator<Layer> BY_Z = Comparator.comparingInt(Layer::getZ);
+
+    // layers in the order they were added, and sorted by ascending z with ties kept in that order
+    private final ArrayList<Layer> added = new ArrayList<>();
+    private final ArrayList<Layer> layers = new ArrayList<>();
+
+    // all visible layers flattened, canvas sized
+    private final CellFrame composite;
+
+    // canvas chunks that must be composited again
+    private final boolean[] dirty;
+
+    // set when layers were added or removed
+    private boolean restack;
+
+    // what the game drew into a frame kept with syncBuffer, before the composite, allocated on first use
+    private CellFrame carried;
+
+    LayerStack(int width, int height) {
+        composite = new CellFrame(width, height);
+        dirty = new boolean[composite.touched.length];
+    }
+
+    void add(Layer layer) {
+        if (!added.contains(layer)) {
+            added.add(layer);
+            layers.add(layer);
+            restack = true;
+        }
+    }
+
+    void remove(Layer layer) {
+        if (added.remove(layer)) {
+            layers.remove(layer);
+            restack = true;
+        }
+    }
+
+    /**
+     * Copies a frame before the composite is laid under it, for the next frame to start from.
+     * @param frame frame about to be composed and published.
+     * @return the copy, valid until the next call.
+     */
+    CellFrame carry(CellFrame frame) {
+        if (carried == null) {
+            carried = new CellFrame(composite.width, composite.height);
+        }
+        carried.copyFrom(frame);
+        return carried;
+    }
+
+    /**
+     * Brings the composite up to date and fills the empty cells of a frame from it.
+     * @param frame frame about to be published.
+     */
+    void compose(CellFrame frame) {
+        collectDirty();
+        for (int c = 0; c < dirty.length; c++) {
+            if (dirty[c]) {
+                recompose(c);
+                dirty[c] = false;
+            }
+        }
+        frame.underlay(composite);
+    }
+
+    // Turns the changes of every layer into canvas chunks to composite, any layer that moved redoes everything
+    private void collectDirty() {
+        boolean all = restack;
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (layer.moved) {
+                layer.moved = false;
+                all = true;
+            }
+        }
+        if (all) {
+            layers.clear();
+            layers.addAll(added);
+            layers.sort(BY_Z);
+            for (int i = 0; i < layers.size(); i++) {
+                Arrays.fill(layers.get(i).plane.dirty, false);
+            }
+            Arrays.fill(dirty, true);
+            restack = false;
+            return;
+        }
+
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            CellFrame plane = layer.plane;
+            boolean visible = layer.isVisible();
+            for (int c = 0; c < plane.dirty.length; c++) {
+                if (!plane.dirty[c]) {
+                    continue;
+                }
+                plane.dirty[c] = false;
+                if (visible) {
+                    int x = layer.getX() + ((c % plane.chunksX) << CellFrame.CHUNK_SHIFT);
+                    int y = layer.getY() + ((c / plane.chunksX) << CellFrame.CHUNK_SHIFT);
+                    markRegion(x, y);
+                }
+            }
+        }
+    }
+
+    // Marks the canvas chunks overlapped by a chunk sized region at (x, y)
+    private void markRegion(int x, int y) {
+        int x0 = Math.max(0, x), x1 = Math.min(composite.width, x + CellFrame.CHUNK);
+        int y0 = Math.max(0, y), y1 = Math.min(composite.height, y + CellFrame.CHUNK);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int cy = y0 >> CellFrame.CHUNK_SHIFT; cy <= (y1 - 1) >> CellFrame.CHUNK_SHIFT; cy++) {
+            for (int cx = x0 >> CellFrame.CHUNK_SHIFT; cx <= (x1 - 1) >> CellFrame.CHUNK_SHIFT; cx++) {
+                dirty[cy * composite.chunksX + cx] = true;
+            }
+        }
+    }
+
+    // Flattens the visible layers over one canvas chunk, bottom to top, copying only non empty cells
+    private void recompose(int chunk) {
+        int x0 = (chunk % composite.chunksX) << CellFrame.CHUNK_SHIFT;
+        int y0 = (chunk / composite.chunksX) << CellFrame.CHUNK_SHIFT;
+        int x1 = Math.min(composite.width, x0 + CellFrame.CHUNK);
+        int y1 = Math.min(composite.height, y0 + CellFrame.CHUNK);
+        long[] dst = composite.cells;
+        int base = chunk * CellFrame.CHUNK_CELLS;
+        Arrays.fill(dst, base, base + CellFrame.CHUNK_CELLS, 0L);
+
+        boolean any = false;
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (!layer.isVisible()) {
+                continue;
+            }
+            CellFrame src = layer.plane;
+            int lx = layer.getX(), ly = layer.getY();
+            int ax0 = Math.max(x0, lx), ax1 = Math.min(x1, lx + src.width);
+            int ay0 = Math.max(y0, ly), ay1 = Math.min(y1, ly + src.height);
+            for (int y = ay0; y < ay1; y++) {
+                int row = base + ((y & CellFrame.CHUNK_MASK) << CellFrame.CHUNK_SHIFT);
+                // the row is copied a layer chunk at a time, skipping layer chunks that are blank
+                for (int x = ax0; x < ax1; ) {
+                    int sx = x - lx;
+                    int end = Math.min(ax1, x + CellFrame.CHUNK - (sx & CellFrame.CHUNK_MASK));
+                    int sp = src.index(sx, y - ly);
+                    if (src.touched[sp >> (CellFrame.CHUNK_SHIFT * 2)]) {
+                        int dp = row + (x & CellFrame.CHUNK_MASK);
+                        for (int n = end - x; n > 0; n--, sp++, dp++) {
+                            long cell = src.cells[sp];
+                            if (cell != 0) {
+                                dst[dp] = cell;
+                                any = true;
+                            }
+                        }
+                    }
+                    x = end;
+                }
+            }
+        }
+        composite.touched[chunk] = any;
+    }
+}
@@ -0,0 +1,263 @@
+package com.cleotroph.asciicanvas;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame and tick timing of a canvas, recorded into {@link Histogram}s: time spent in render and tick, time the backend
+ * took to present a frame, and how late frames started after their deadline. Frames that overran into the next
+ * deadline are counted as late, the deadlines they skipped as dropped. Times are in nanoseconds.
+ * <p>
+ * Recording is on by default and costs a few atomic increments per frame, when disabled every recording site is
+ * skipped after one volatile read. The same numbers are available as a JMX MBean once {@link #register} is called.
+ * <p>
+ * Startup is timed once, whether or not recording is enabled: how long load() and the backend warm-up took, and the
+ * time from start() to the first frame being presented.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final Histogram render = new Histogram();
+    private final Histogram present = new Histogram();
+    private final Histogram tick = new Histogram();
+    private final Histogram lateness = new Histogram();
+    private final Histogram input = new Histogram();
+    private final AtomicLong lateFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    volatile boolean enabled = true;
+
+    // startup times, -1 until known
+    private volatile long startedAt;
+    private volatile long loadTime = -1;
+    private volatile long warmUpTime = -1;
+    private volatile long timeToFirstFrame = -1;
+    private volatile RuntimeException warmUpError;
+
+    private ObjectName registeredName;
+
+    // Recording sites, callers check enabled first so nothing is timed while disabled
+
+    void recordRender(long nanos, long lateNanos) {
+        render.record(nanos);
+        lateness.record(lateNanos);
+    }
+
+    void recordPresent(long nanos) {
+        present.record(nanos);
+    }
+
+    void recordTick(long nanos) {
+        tick.record(nanos);
+    }
+
+    void recordInput(long nanos) {
+        input.record(nanos);
+    }
+
+    void recordStart(long now) {
+        startedAt = now;
+        loadTime = -1;
+        warmUpTime = -1;
+        timeToFirstFrame = -1;
+        warmUpError = null;
+    }
+
+    void recordLoad(long nanos) {
+        loadTime = nanos;
+    }
+
+    void recordWarmUp(long nanos) {
+        warmUpTime = nanos;
+    }
+
+    void recordWarmUpError(RuntimeException e) {
+        warmUpError = e;
+    }
+
+    // Only called for the first presented frame
+    void recordFirstFrame(long now) {
+        timeToFirstFrame = now - startedAt;
+    }
+
+    void recordOverrun(long skippedDeadlines) {
+        lateFrames.incrementAndGet();
+        droppedFrames.addAndGet(skippedDeadlines);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as
+     * {@code com.cleotroph.asciicanvas:type=Metrics,name=<name>}, an id is appended to keep names unique.
+     * @param name name to identify the canvas by, usually the window name.
+     * @return true if the MBean was registered, false if it already was or registration failed.
+     */
+    public synchronized boolean register(String name) {
+        if (registeredName != null) {
+            return false;
+        }
+        try {
+            ObjectName objectName = new ObjectName("com.cleotroph.asciicanvas:type=Metrics,name="
+                    + ObjectName.quote(name + "-" + instances.incrementAndGet()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            registeredName = objectName;
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes the MBean registered by {@link #register}, if any.
+     */
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // already gone
+        }
+        registeredName = null;
+    }
+
+    /**
+     * @return histogram of render time per frame, including publishing the frame.
+     */
+    public Histogram getRenderHistogram() {
+        return render;
+    }
+
+    /**
+     * @return histogram of the time the backend took to present a frame.
+     */
+    public Histogram getPresentHistogram() {
+        return present;
+    }
+
+    /**
+     * @return histogram of tick time.
+     */
+    public Histogram getTickHistogram() {
+        return tick;
+    }
+
+    /**
+     * @return histogram of the delay between a frame deadline and the frame starting.
+     */
+    public Histogram getLatenessHistogram() {
+        return lateness;
+    }
+
+    /**
+     * @return histogram of the delay between a key event arriving and the tick that sees it.
+     */
+    public Histogram getInputHistogram() {
+        return input;
+    }
+
+    @Override
+    public Histogram.Snapshot getRender() {
+        return render.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getPresent() {
+        return present.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getTick() {
+        return tick.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getLateness() {
+        return lateness.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getInput() {
+        return input.snapshot();
+    }
+
+    /**
+     * @return frames that were still running when the next frame was due.
+     */
+    @Override
+    public long getLateFrames() {
+        return lateFrames.get();
+    }
+
+    /**
+     * @return frame deadlines skipped because a frame overran them.
+     */
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return time load() took on start, -1 before it finished.
+     */
+    @Override
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * @return time the backend took to warm up on its background thread while load() ran, -1 before it finished.
+     */
+    @Override
+    public long getWarmUpTime() {
+        return warmUpTime;
+    }
+
+    /**
+     * @return why warming up the backend failed, null if it did not. A failed warm-up only costs the first frame its
+     * head start, the backend sets itself up on the first present instead.
+     */
+    public RuntimeException getWarmUpError() {
+        return warmUpError;
+    }
+
+    /**
+     * @return time from start() to the first rendered frame being presented, -1 before that.
+     */
+    @Override
+    public long getTimeToFirstFrame() {
+        return timeToFirstFrame;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled false to stop recording, the recorded values are kept.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Forgets everything recorded so far, except the startup times.
+     */
+    @Override
+    public void reset() {
+        render.reset();
+        present.reset();
+        tick.reset();
+        lateness.reset();
+        input.reset();
+        lateFrames.set(0);
+        droppedFrames.set(0);
+    }
+}
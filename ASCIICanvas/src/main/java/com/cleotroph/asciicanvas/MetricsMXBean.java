@@ -0,0 +1,32 @@
+package com.cleotroph.asciicanvas;
+
+/**
+ * JMX view of {@link Metrics}. Times are in nanoseconds.
+ */
+public interface MetricsMXBean {
+    Histogram.Snapshot getRender();
+
+    Histogram.Snapshot getPresent();
+
+    Histogram.Snapshot getTick();
+
+    Histogram.Snapshot getLateness();
+
+    Histogram.Snapshot getInput();
+
+    long getLateFrames();
+
+    long getDroppedFrames();
+
+    long getLoadTime();
+
+    long getWarmUpTime();
+
+    long getTimeToFirstFrame();
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    void reset();
+}
@@ -0,0 +1,89 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.Arrays;
+
+/**
+ * Draws the p50, p99 and max of the frame timings into the top right corner of a frame, in milliseconds. Drawn by the
+ * presenter over a copy of the presented frame. Formats into a reused line buffer so drawing it every frame allocates
+ * nothing.
+ */
+class MetricsOverlay {
+    private static final int LABEL_WIDTH = 8;
+    private static final int COLUMN_WIDTH = 7;
+    static final int WIDTH = LABEL_WIDTH + 3 * COLUMN_WIDTH;
+
+    private final char[] line = new char[WIDTH];
+
+    void draw(CellFrame frame, Metrics metrics) {
+        int x0 = Math.max(0, frame.width - WIDTH);
+        int row = 0;
+
+        begin();
+        put(0, "ms");
+        putRight(LABEL_WIDTH + COLUMN_WIDTH, "p50");
+        putRight(LABEL_WIDTH + 2 * COLUMN_WIDTH, "p99");
+        putRight(WIDTH, "max");
+        flush(frame, x0, row++);
+
+        drawTimes(frame, x0, row++, "render", metrics.getRenderHistogram());
+        drawTimes(frame, x0, row++, "present", metrics.getPresentHistogram());
+        drawTimes(frame, x0, row++, "tick", metrics.getTickHistogram());
+        drawTimes(frame, x0, row++, "lateness", metrics.getLatenessHistogram());
+
+        begin();
+        put(0, "late");
+        putNumber(LABEL_WIDTH + COLUMN_WIDTH, metrics.getLateFrames());
+        put(LABEL_WIDTH + COLUMN_WIDTH + 1, "drop");
+        putNumber(WIDTH, metrics.getDroppedFrames());
+        flush(frame, x0, row);
+    }
+
+    private void drawTimes(CellFrame frame, int x0, int y, String label, Histogram h) {
+        begin();
+        put(0, label);
+        putMillis(LABEL_WIDTH + COLUMN_WIDTH, h.percentile(0.5));
+        putMillis(LABEL_WIDTH + 2 * COLUMN_WIDTH, h.percentile(0.99));
+        putMillis(WIDTH, h.getMax());
+        flush(frame, x0, y);
+    }
+
+    private void begin() {
+        Arrays.fill(line, ' ');
+    }
+
+    private void put(int x, String text) {
+        text.getChars(0, Math.min(text.length(), WIDTH - x), line, x);
+    }
+
+    private void putRight(int end, String text) {
+        put(end - text.length(), text);
+    }
+
+    // Writes nanoseconds as milliseconds with one decimal, right aligned to end
+    private void putMillis(int end, long nanos) {
+        long tenths = Math.min(nanos / 100_000, 99_999);
+        line[end - 1] = (char) ('0' + tenths % 10);
+        line[end - 2] = '.';
+        putNumber(end - 2, tenths / 10);
+    }
+
+    // Writes a non negative number right aligned to end, clipped to the digits that fit in a column
+    private void putNumber(int end, long value) {
+        int x = end;
+        do {
+            line[--x] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0 && x > end - COLUMN_WIDTH + 1);
+    }
+
+    // Copies the line buffer into a row of the frame, clipped to the frame
+    private void flush(CellFrame frame, int x0, int y) {
+        if (y >= frame.height) {
+            return;
+        }
+        int n = Math.min(WIDTH, frame.width - x0);
+        for (int i = 0; i < n; i++) {
+            frame.set(frame.index(x0 + i, y), Cell.pack(line[i], 0, Cell.NO_BACKGROUND, 0));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.cleotroph.asciicanvas;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Class to be initialized and passed in when launching in custom resolutions. Initializes with default settings. config
@@ -15,11 +16,14 @@ public class PreLauncher {
     private int[] sizes = {20, 14, 28};
     boolean fullScreen = true;
     private int resMode = 0;
-    private volatile boolean open = true;
+    // released by the start button
+    private final CountDownLatch started = new CountDownLatch(1);
     public PreLauncher(String name){
         cx = 96;
         cy = 54;
         JFrame prelauncher = new JFrame(name);
+        // nothing to return to once the launcher is closed
+        prelauncher.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         prelauncher.getContentPane().setLayout(null);
         prelauncher.setSize(300, 300);
         prelauncher.setLocation((int) (Toolkit.getDefaultToolkit().getScreenSize().getWidth() / 2) - 150,
@@ -41,9 +45,7 @@ public class PreLauncher {
         fullscreenButton.setBounds(10, 130, 130, 110);
 
         JButton startButton = new JButton("Start game");
-        startButton.addActionListener(actionEvent -> {
-            open = false;
-        });
+        startButton.addActionListener(actionEvent -> started.countDown());
         startButton.setBounds(150, 130, 125, 110);
 
         prelauncher.add(resButton);
@@ -51,13 +53,30 @@ public class PreLauncher {
         prelauncher.add(fullscreenButton);
 
         prelauncher.setVisible(true);
-        while (open) { }
+        // parked until the button is clicked, the selection made on the event thread is visible after the latch
+        boolean interrupted = false;
+        while (true) {
+            try {
+                started.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
         prelauncher.dispose();
         width = widths[resMode];
         height = heights[resMode];
         size = sizes[resMode];
     }
 
+    // Settings chosen in the launcher
+    LaunchConfig config(){
+        return new LaunchConfig(width, height, cx, cy, size, fullScreen);
+    }
+
     /**
      * Set character width of canvas
      * @param cx width
@@ -0,0 +1,35 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+
+/**
+ * Output surface for the screen buffer. The presenter thread hands every frame it picks up to {@link #present}, so a
+ * backend only ever sees one frame at a time and never from more than one thread.
+ */
+public interface RenderBackend {
+    /**
+     * Presents a frame of cells.
+     * @param frame cells to show, only valid for the duration of the call.
+     * @param palette colors indexed by the cell color ids.
+     */
+    void present(CellFrame frame, Color[] palette);
+
+    /**
+     * Called once on a background thread while the canvas loads, before the first frame is presented. Backends can
+     * build fonts, glyphs and buffers here so the first frame does not pay for them.
+     * @param columns character width of the frames that will be presented.
+     * @param rows character height of the frames that will be presented.
+     */
+    default void warmUp(int columns, int rows) {
+    }
+
+    /**
+     * @return width of the output surface in its native unit (pixels, or characters for text backends).
+     */
+    int getSurfaceWidth();
+
+    /**
+     * @return height of the output surface in its native unit (pixels, or characters for text backends).
+     */
+    int getSurfaceHeight();
+}
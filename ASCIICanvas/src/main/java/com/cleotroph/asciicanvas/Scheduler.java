@@ -0,0 +1,255 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the tick and render loops of a canvas from {@link System#nanoTime()} deadlines. Ticks run on a fixed timestep
+ * and catch up at most {@code maxTicksPerFrame} times before a frame is rendered, frames are rendered whenever their
+ * own deadline passes. Waiting parks the thread and finishes with a short spin, so an idle canvas uses almost no CPU.
+ */
+public class Scheduler {
+    // remaining time below which waiting spins rather than parks
+    static final long SPIN_NANOS = 100_000;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final Runnable tick;
+    private final Runnable frame;
+    private final Metrics metrics;
+
+    // loop periods in nanoseconds
+    private volatile long tickPeriod;
+    private volatile long framePeriod;
+    private volatile int maxTicksPerFrame = 5;
+
+    // next deadlines, only touched by the loop thread
+    private long nextTick;
+    private long nextFrame;
+    private boolean started;
+
+    // cleared by stop, a step in progress returns after the tick or frame it is running
+    private volatile boolean running = true;
+    private Thread thread;
+
+    // frame timing stats
+    private long lastFrameStart;
+    private volatile long frames;
+    private volatile long jitterSum;
+    private volatile long maxLateness;
+    private volatile long droppedTicks;
+
+    /**
+     * @param tick called once per game tick.
+     * @param frame called once per rendered frame.
+     */
+    Scheduler(Runnable tick, Runnable frame) {
+        this(tick, frame, new Metrics());
+    }
+
+    /**
+     * @param tick called once per game tick.
+     * @param frame called once per rendered frame.
+     * @param metrics where tick and frame timings are recorded.
+     */
+    Scheduler(Runnable tick, Runnable frame, Metrics metrics) {
+        this.tick = tick;
+        this.frame = frame;
+        this.metrics = metrics;
+        setTickRate(15);
+        setFrameRate(15);
+    }
+
+    /**
+     * Starts the loop on its own thread.
+     * @param name thread name.
+     */
+    void start(String name) {
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                sleepUntil(step(System.nanoTime()));
+            }
+        }, name);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop, waiting for the current step when called from another thread. A step in progress runs no further
+     * tick or frame, so stopping from inside a tick ends the step when that tick returns.
+     */
+    void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs every tick that is due, followed by a frame if one is due. Returns right away once stopped.
+     * @param now current {@link System#nanoTime()}.
+     * @return deadline of the next tick or frame.
+     */
+    long step(long now) {
+        if (!started) {
+            nextTick = now;
+            nextFrame = now;
+            started = true;
+        }
+
+        // Timings reuse the clock reads the loop already makes
+        Metrics m = metrics;
+        boolean record = m.enabled;
+
+        // Fixed timestep ticks, bounded catch-up
+        long period = tickPeriod;
+        int ticks = 0;
+        while (now - nextTick >= 0 && ticks < maxTicksPerFrame) {
+            long start = now;
+            tick.run();
+            nextTick += period;
+            ticks++;
+            now = System.nanoTime();
+            if (record) {
+                m.recordTick(now - start);
+            }
+            if (!running) {
+                // stopped from the tick, the game has saved and must not change any more
+                return now;
+            }
+        }
+        if (now - nextTick >= 0) {
+            // too far behind to catch up, drop the backlog instead of spiraling
+            long behind = (now - nextTick) / period + 1;
+            droppedTicks += behind;
+            nextTick += behind * period;
+        }
+
+        // Variable rate frames
+        if (running && now - nextFrame >= 0) {
+            long lateness = now - nextFrame;
+            if (lateness > maxLateness) {
+                maxLateness = lateness;
+            }
+            if (frames > 0) {
+                jitterSum += Math.abs((now - lastFrameStart) - framePeriod);
+            }
+            long start = now;
+            lastFrameStart = now;
+            frames++;
+
+            frame.run();
+
+            nextFrame += framePeriod;
+            now = System.nanoTime();
+            if (record) {
+                m.recordRender(now - start, lateness);
+            }
+            if (now - nextFrame >= 0) {
+                // missed frames are skipped rather than rendered back to back
+                if (record) {
+                    m.recordOverrun((now - nextFrame) / framePeriod + 1);
+                }
+                nextFrame = now + framePeriod;
+            }
+        }
+
+        return nextTick - nextFrame < 0 ? nextTick : nextFrame;
+    }
+
+    /**
+     * Parks the calling thread until the deadline, spinning for the last {@link #SPIN_NANOS}.
+     * @param deadline {@link System#nanoTime()} to wake at.
+     */
+    static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Converts a per second rate into a period in nanoseconds.
+     * @param rate events per second.
+     * @return period in nanoseconds.
+     */
+    static long periodOf(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        return NANOS_PER_SECOND / rate;
+    }
+
+    /**
+     * @param rate ticks per second.
+     */
+    public void setTickRate(int rate) {
+        tickPeriod = periodOf(rate);
+    }
+
+    /**
+     * @param rate frames per second.
+     */
+    public void setFrameRate(int rate) {
+        framePeriod = periodOf(rate);
+    }
+
+    // Nanoseconds between ticks
+    long getTickPeriod() {
+        return tickPeriod;
+    }
+
+    /**
+     * Sets how many ticks may run back to back to catch up before a frame is rendered. Any backlog beyond this is
+     * dropped.
+     * @param ticks maximum ticks per frame, at least 1.
+     */
+    public void setMaxTicksPerFrame(int ticks) {
+        maxTicksPerFrame = Math.max(1, ticks);
+    }
+
+    /**
+     * @return timing histograms of the ticks and frames run by this scheduler.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return frames rendered so far.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return mean absolute deviation of the frame interval from the frame period, in nanoseconds.
+     */
+    public long getFrameJitterNanos() {
+        long f = frames;
+        return f > 1 ? jitterSum / (f - 1) : 0;
+    }
+
+    /**
+     * @return largest delay between a frame deadline and the frame starting, in nanoseconds.
+     */
+    public long getMaxFrameLatenessNanos() {
+        return maxLateness;
+    }
+
+    /**
+     * @return ticks skipped because the loop fell further behind than the catch-up limit.
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+}
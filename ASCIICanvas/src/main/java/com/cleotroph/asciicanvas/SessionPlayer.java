@@ -0,0 +1,231 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plays back a recording made by a {@link SessionRecorder}. The file is memory mapped and indexed on open, seeking
+ * decodes from the closest keyframe at or before the target. A recording cut short, say by a crash, plays up to its
+ * last complete frame. A player is not thread safe.
+ */
+public class SessionPlayer implements Closeable {
+    private final MappedByteBuffer data;
+    private final int width, height;
+
+    // per frame: record position, timestamp, and the position of the palette record in effect, -1 for none
+    private int[] positions = new int[256];
+    private long[] timestamps = new long[256];
+    private int[] palettes = new int[256];
+    private int frameCount;
+
+    private final CellFrame frame;
+    private Color[] palette;
+    private int palettePosition = -1;
+    // index of the frame held in frame, -1 before the first
+    private int current = -1;
+
+    /**
+     * Maps and indexes a recording.
+     * @param file recording, at most 2GB.
+     * @throws IOException if the file cannot be read or is not a recording.
+     */
+    public SessionPlayer(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("recording larger than 2GB: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.limit() < SessionRecorder.HEADER_BYTES || data.getInt(0) != SessionRecorder.MAGIC
+                || data.getInt(4) != SessionRecorder.VERSION) {
+            MappedFiles.unmap(data);
+            throw new IOException("not a recording: " + file);
+        }
+        width = data.getInt(8);
+        height = data.getInt(12);
+        frame = new CellFrame(width, height);
+        index();
+        if (frameCount > 0 && data.get(positions[0] + 4) != SessionRecorder.KEYFRAME) {
+            // seeking walks back to a keyframe, which the first frame must be
+            MappedFiles.unmap(data);
+            throw new IOException("not a recording: " + file);
+        }
+    }
+
+    // Walks the record headers, stopping at the first incomplete record
+    private void index() {
+        int pos = SessionRecorder.HEADER_BYTES;
+        int paletteAt = -1;
+        while (pos + SessionRecorder.RECORD_HEADER_BYTES <= data.limit()) {
+            int length = data.getInt(pos);
+            int next = pos + SessionRecorder.RECORD_HEADER_BYTES + length;
+            if (length < 0 || next > data.limit() || next < 0) {
+                break;
+            }
+            byte type = data.get(pos + 4);
+            if (type == SessionRecorder.PALETTE) {
+                paletteAt = pos;
+            } else {
+                if (frameCount == positions.length) {
+                    positions = Arrays.copyOf(positions, frameCount * 2);
+                    timestamps = Arrays.copyOf(timestamps, frameCount * 2);
+                    palettes = Arrays.copyOf(palettes, frameCount * 2);
+                }
+                positions[frameCount] = pos;
+                timestamps[frameCount] = data.getLong(pos + 5);
+                palettes[frameCount] = paletteAt;
+                frameCount++;
+            }
+            pos = next;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of complete frames in the recording.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return time from the first to the last frame.
+     */
+    public long getDurationNanos() {
+        return frameCount == 0 ? 0 : timestamps[frameCount - 1];
+    }
+
+    /**
+     * @param index frame index.
+     * @return when the frame was recorded, in nanoseconds since the first frame.
+     */
+    public long getTimestampNanos(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * @return index of the current frame, -1 before the first {@link #next} or {@link #seek}.
+     */
+    public int getPosition() {
+        return current;
+    }
+
+    /**
+     * @return current frame, updated in place by {@link #next} and {@link #seek}.
+     */
+    public CellFrame getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return palette of the current frame, null before the first frame.
+     */
+    public Color[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Decodes the frame after the current one.
+     * @return false if the current frame is the last.
+     */
+    public boolean next() {
+        if (current + 1 >= frameCount) {
+            return false;
+        }
+        decode(++current);
+        return true;
+    }
+
+    /**
+     * Makes a frame current, decoding forward from the closest keyframe, or from the current frame if that is closer.
+     * @param index frame index.
+     */
+    public void seek(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + frameCount);
+        }
+        int key = index;
+        while (data.get(positions[key] + 4) != SessionRecorder.KEYFRAME) {
+            key--;
+        }
+        int from = current >= key && current <= index ? current + 1 : key;
+        for (int i = from; i <= index; i++) {
+            decode(i);
+        }
+        current = index;
+    }
+
+    /**
+     * Makes the last frame recorded at or before a time current.
+     * @param nanos time since the first frame.
+     */
+    public void seekTime(long nanos) {
+        int i = Arrays.binarySearch(timestamps, 0, frameCount, nanos);
+        seek(Math.max(0, i >= 0 ? i : -i - 2));
+    }
+
+    /**
+     * Presents every frame from the one after the current to the last, paced by their timestamps. Blocks until done.
+     * @param backend backend to present to.
+     * @param speed playback speed, 1 for real time, 0 or less to present frames as fast as the backend takes them.
+     */
+    public void play(RenderBackend backend, double speed) {
+        if (current + 1 >= frameCount) {
+            return;
+        }
+        long origin = timestamps[current + 1];
+        long start = System.nanoTime();
+        while (next()) {
+            if (speed > 0) {
+                Scheduler.sleepUntil(start + (long) ((timestamps[current] - origin) / speed));
+            }
+            backend.present(frame, palette);
+        }
+    }
+
+    /**
+     * Unmaps the recording. The player must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        MappedFiles.unmap(data);
+    }
+
+    private void decode(int index) {
+        int pos = positions[index];
+        if (palettes[index] != palettePosition) {
+            palettePosition = palettes[index];
+            palette = palettePosition < 0 ? null : readPalette(palettePosition);
+        }
+        // through Buffer so the call also links on Java 8
+        ((Buffer) data).position(pos + SessionRecorder.RECORD_HEADER_BYTES);
+        FrameCodec.decode(data, pos + SessionRecorder.RECORD_HEADER_BYTES + data.getInt(pos), frame,
+                data.get(pos + 4) == SessionRecorder.KEYFRAME);
+        current = index;
+    }
+
+    private Color[] readPalette(int pos) {
+        int p = pos + SessionRecorder.RECORD_HEADER_BYTES;
+        Color[] colors = new Color[data.getInt(p)];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = new Color(data.getInt(p + 4 + i * 4), true);
+        }
+        return colors;
+    }
+}
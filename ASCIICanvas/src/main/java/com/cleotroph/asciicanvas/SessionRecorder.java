@@ -0,0 +1,269 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Records every published frame of a canvas to a file, for bug reports and demos, see
+ * {@link ASCIICanvas#startRecording}. Play recordings back with a {@link SessionPlayer}.
+ * <p>
+ * The render thread only copies each frame into one of a few pooled frames and queues it, a background thread diffs it
+ * against the frame before, encodes the changed cells with {@link FrameCodec} and writes them out. Every
+ * keyframe interval a full frame is written so players can seek. When the writer falls behind and no pooled frame is
+ * free the frame is left out of the recording rather than stalling the game, see {@link #getFramesDropped}.
+ * <p>
+ * The file is a header followed by records, each an int payload length, a record type, a long timestamp in
+ * nanoseconds since the recording started and the payload. Everything is little endian.
+ */
+public class SessionRecorder implements Closeable {
+    // "ACRC"
+    static final int MAGIC = 0x41435243;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_HEADER_BYTES = 13;
+
+    // record types
+    static final byte KEYFRAME = 1;
+    static final byte DELTA = 2;
+    static final byte PALETTE = 3;  // int count, then count RGB ints
+
+    // frames captured ahead of the writer before frames are dropped
+    private static final int POOL_SIZE = 4;
+
+    private final int width, height;
+    private final int keyframeInterval;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    // Pooled captures, free ones and ones waiting for the writer. A capture is owned by exactly one of the two queues,
+    // the render thread or the writer at any time.
+    private final ArrayBlockingQueue<Capture> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Capture> pending = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    // queued once by close to stop the writer
+    private final Capture end;
+
+    // writer state, the last frame written and its palette
+    private final CellFrame previous;
+    private Color[] previousPalette;
+    private final ByteBuffer out;
+    private long startNanos = -1;
+    private int sinceKeyframe;
+
+    // stats, written by one thread each
+    private volatile long framesRecorded, framesDropped, bytesWritten, encodeNanos;
+    private volatile IOException error;
+
+    /**
+     * Creates the file, replacing any existing one, and starts the writer thread.
+     * @param file file to record to.
+     * @param width width of the recorded frames in cells.
+     * @param height height of the recorded frames in cells.
+     * @param keyframeInterval frames between full frames, seeking decodes up to this many frames.
+     * @throws IOException if the file cannot be created.
+     */
+    public SessionRecorder(Path file, int width, int height, int keyframeInterval) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            free.add(new Capture(new CellFrame(width, height)));
+        }
+        end = new Capture(null);
+        previous = new CellFrame(width, height);
+        out = ByteBuffer.allocateDirect(RECORD_HEADER_BYTES + FrameCodec.maxEncodedSize(previous))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(this.keyframeInterval).rewind();
+        writeFully(header);
+
+        writer = new Thread(this::write, "ASCIICanvas recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a copy of a frame for the writer, dropped if the writer is behind. Never blocks or allocates.
+     * @param frame frame about to be published, the same size as the recording.
+     * @param palette palette the frame is presented with.
+     */
+    void capture(CellFrame frame, Color[] palette) {
+        Capture c = free.poll();
+        if (c == null) {
+            framesDropped++;
+            return;
+        }
+        c.frame.copyFrom(frame);
+        c.palette = palette;
+        c.nanos = System.nanoTime();
+        pending.offer(c);
+    }
+
+    /**
+     * Writes out every queued frame and closes the file.
+     * @throws IOException if writing failed at any point of the recording.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer.isAlive()) {
+            pending.offer(end);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return frames written to the file.
+     */
+    public long getFramesRecorded() {
+        return framesRecorded;
+    }
+
+    /**
+     * @return frames left out because the writer fell behind.
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * @return size of the recording so far, in bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return time spent diffing and encoding frames, excluding file writes.
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * @return frames encoded per second of encode time, 0 before the first frame.
+     */
+    public double getEncodeFramesPerSecond() {
+        long nanos = encodeNanos;
+        return nanos == 0 ? 0 : framesRecorded * 1e9 / nanos;
+    }
+
+    /**
+     * Encode throughput measured in cells read, so it does not depend on how well frames compress.
+     * @return megabytes of frame cells encoded per second of encode time, 0 before the first frame.
+     */
+    public double getEncodeMegabytesPerSecond() {
+        return getEncodeFramesPerSecond() * previous.cells.length * Long.BYTES / (1024.0 * 1024.0);
+    }
+
+    /**
+     * @return why writing the recording failed, null if it did not. Frames after a failure are not written.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    // Writer thread, encodes and writes captures until close queues the end marker
+    private void write() {
+        while (true) {
+            Capture c;
+            try {
+                c = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (c == end) {
+                return;
+            }
+            if (error == null) {
+                try {
+                    writeFrame(c);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            c.palette = null;
+            free.offer(c);
+        }
+    }
+
+    private void writeFrame(Capture c) throws IOException {
+        if (startNanos < 0) {
+            startNanos = c.nanos;
+        }
+        long time = c.nanos - startNanos;
+        if (c.palette != previousPalette) {
+            // rare enough to get a buffer of its own, palettes can outgrow the frame buffer
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + 4 + c.palette.length * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.putInt(record.capacity() - RECORD_HEADER_BYTES).put(PALETTE).putLong(time).putInt(c.palette.length);
+            for (Color color : c.palette) {
+                record.putInt(color.getRGB());
+            }
+            record.flip();
+            writeFully(record);
+            previousPalette = c.palette;
+        }
+
+        long start = System.nanoTime();
+        boolean keyframe = sinceKeyframe == 0;
+        out.clear();
+        out.putInt(0).put(keyframe ? KEYFRAME : DELTA).putLong(time);
+        FrameCodec.encode(c.frame, keyframe ? null : previous, out);
+        previous.copyFrom(c.frame);
+        encodeNanos += System.nanoTime() - start;
+        sinceKeyframe = (sinceKeyframe + 1) % keyframeInterval;
+        out.putInt(0, out.position() - RECORD_HEADER_BYTES);
+        out.flip();
+        writeFully(out);
+        framesRecorded++;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        bytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // A pooled copy of a frame and when it was captured
+    private static final class Capture {
+        final CellFrame frame;
+        Color[] palette;
+        long nanos;
+
+        Capture(CellFrame frame) {
+            this.frame = frame;
+        }
+    }
+}
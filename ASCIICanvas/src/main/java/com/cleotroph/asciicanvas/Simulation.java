@@ -0,0 +1,134 @@
+package com.cleotroph.asciicanvas;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the ticks of a canvas as fast as the CPU allows instead of at its tick rate, for AI training, replay
+ * verification and soak tests. Ticks run back to back on the calling thread against a virtual clock that advances one
+ * tick period per tick, read it in tick() with {@link ASCIICanvas#nanoTime()}.
+ * <p>
+ * Rendering is skipped unless a render interval is set, then every Nth tick a frame is rendered and presented to the
+ * backend of the canvas right away, so an {@link ImageBackend} always holds the latest one. No threads are started and
+ * no display is needed: create the canvas on a custom backend. A simulation is not thread safe, drive it from one
+ * thread.
+ */
+public class Simulation {
+    private final ASCIICanvas canvas;
+    private final Scheduler scheduler;
+
+    // virtual time, advanced one tick period per tick
+    private long virtualNanos;
+    private long ticks;
+    private long frames;
+
+    // ticks between rendered frames, 0 to never render
+    private int renderInterval;
+    private int sinceRender;
+
+    // wall time spent running ticks and frames
+    private long runNanos;
+
+    /**
+     * Loads the canvas for simulation, in place of starting it. Key events posted with
+     * {@link ASCIICanvas#postKeyEvent} are applied before the next simulated tick.
+     * @param canvas canvas created on a custom backend and not started.
+     */
+    public Simulation(ASCIICanvas canvas) {
+        this.canvas = canvas;
+        scheduler = canvas.getScheduler();
+        canvas.startSimulation(this);
+    }
+
+    /**
+     * Sets how often frames are rendered while ticks run.
+     * @param ticks ticks between rendered frames, 0 to never render.
+     */
+    public void setRenderInterval(int ticks) {
+        renderInterval = Math.max(0, ticks);
+        sinceRender = 0;
+    }
+
+    /**
+     * Runs a number of ticks.
+     * @param count ticks to run.
+     * @return ticks run, always count.
+     */
+    public long step(long count) {
+        return run(count, null);
+    }
+
+    /**
+     * Runs ticks until a condition holds, checked before every tick.
+     * @param done condition to stop at, such as the game being over.
+     * @param maxTicks most ticks to run if the condition never holds.
+     * @return ticks run, 0 if the condition held right away.
+     */
+    public long runUntil(BooleanSupplier done, long maxTicks) {
+        return run(maxTicks, done);
+    }
+
+    /**
+     * Renders and presents a frame now, independent of the render interval.
+     */
+    public void render() {
+        long start = System.nanoTime();
+        canvas.onRender();
+        frames++;
+        runNanos += System.nanoTime() - start;
+    }
+
+    private long run(long count, BooleanSupplier done) {
+        int interval = renderInterval;
+        long start = System.nanoTime();
+        long n = 0;
+        while (n < count && (done == null || !done.getAsBoolean())) {
+            // read every tick, tick() may change the rate
+            virtualNanos += scheduler.getTickPeriod();
+            canvas.onTick();
+            n++;
+            if (interval > 0 && ++sinceRender >= interval) {
+                sinceRender = 0;
+                canvas.onRender();
+                frames++;
+            }
+        }
+        ticks += n;
+        runNanos += System.nanoTime() - start;
+        return n;
+    }
+
+    /**
+     * @return the virtual clock, ticks run times the tick period of the canvas.
+     */
+    public long getVirtualNanos() {
+        return virtualNanos;
+    }
+
+    /**
+     * @return ticks run so far.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return frames rendered so far.
+     */
+    public long getFramesRendered() {
+        return frames;
+    }
+
+    /**
+     * @return wall time spent running ticks and frames.
+     */
+    public long getElapsedNanos() {
+        return runNanos;
+    }
+
+    /**
+     * @return ticks run per second of wall time, 0 before the first tick.
+     */
+    public double getTicksPerSecond() {
+        return runNanos == 0 ? 0 : ticks * 1e9 / runNanos;
+    }
+}
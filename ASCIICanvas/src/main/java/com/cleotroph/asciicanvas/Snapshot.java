@@ -0,0 +1,123 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot written by a {@link SnapshotWriter}, memory mapped so that opening it only reads what is used. Restore
+ * the canvas with {@link ASCIICanvas#restoreSnapshot} and read the game state from {@link #getState()}, usually in
+ * load(). The file is checked against its checksum on open.
+ */
+public class Snapshot implements Closeable {
+    // "ACSN"
+    static final int MAGIC = 0x4143534E;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private final MappedByteBuffer data;
+    private final int width, height;
+    private final int paletteSize, frameBytes, stateBytes;
+
+    /**
+     * Maps and checks a snapshot.
+     * @param file snapshot, at most 2GB.
+     * @throws IOException if the file cannot be read, is not a snapshot or is damaged.
+     */
+    public Snapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("snapshot larger than 2GB: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            MappedFiles.unmap(data);
+            throw new IOException("not a snapshot: " + file);
+        }
+        width = data.getInt(8);
+        height = data.getInt(12);
+        paletteSize = data.getInt(16);
+        frameBytes = data.getInt(20);
+        stateBytes = data.getInt(24);
+        long size = HEADER_BYTES + paletteSize * 4L + frameBytes + stateBytes;
+        if (paletteSize < 0 || frameBytes < 0 || stateBytes < 0 || size != data.limit() || !checksumMatches()) {
+            MappedFiles.unmap(data);
+            throw new IOException("damaged snapshot: " + file);
+        }
+    }
+
+    private boolean checksumMatches() {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = data.duplicate();
+        ((Buffer) body).position(HEADER_BYTES);
+        crc.update(body);
+        return (int) crc.getValue() == data.getInt(28);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the palette the frame was presented with.
+     */
+    public Color[] getPalette() {
+        Color[] palette = new Color[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = new Color(data.getInt(HEADER_BYTES + i * 4));
+        }
+        return palette;
+    }
+
+    /**
+     * @return a new frame holding the snapshot cells.
+     */
+    public CellFrame getFrame() {
+        CellFrame frame = new CellFrame(width, height);
+        readFrame(frame);
+        return frame;
+    }
+
+    // Decodes the cells into a frame of the snapshot size
+    void readFrame(CellFrame frame) {
+        ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = HEADER_BYTES + paletteSize * 4;
+        ((Buffer) in).position(start);
+        FrameCodec.decode(in, start + frameBytes, frame, true);
+    }
+
+    /**
+     * The game state stored with the snapshot, read straight from the mapped file. Only valid until the snapshot is
+     * closed, copy what must be kept.
+     * @return read only buffer of the state bytes, empty if none were stored.
+     */
+    public ByteBuffer getState() {
+        ByteBuffer state = data.duplicate();
+        int start = HEADER_BYTES + paletteSize * 4 + frameBytes;
+        ((Buffer) state).position(start);
+        ((Buffer) state).limit(start + stateBytes);
+        return state.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Unmaps the file, buffers returned by {@link #getState()} must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        MappedFiles.unmap(data);
+    }
+}
@@ -0,0 +1,327 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Writes snapshots of a canvas and its game state from a background thread, see {@link ASCIICanvas#snapshot} and
+ * {@link ASCIICanvas#autosave}. Load them with a {@link Snapshot}.
+ * <p>
+ * The game thread only copies the frame and state into one of a few pooled captures, the writer encodes them into a
+ * temporary file next to the target, forces it to disk and renames it over the target in one atomic step. A snapshot
+ * cut off by a crash or by {@link #close(long)} timing out leaves the previous snapshot intact. When no pooled capture
+ * is free the snapshot is skipped, see {@link #getSnapshotsDropped}.
+ * <p>
+ * The file is a header (magic, version, width, height, palette size, frame bytes, state bytes and a CRC32 of what
+ * follows), the palette as RGB ints, the frame encoded as a {@link FrameCodec} keyframe and the state bytes.
+ * Everything but the state is little endian.
+ */
+public class SnapshotWriter implements Closeable {
+    // captures waiting for or being written before snapshots are skipped
+    private static final int POOL_SIZE = 2;
+
+    private final int width, height;
+    private final Thread writer;
+
+    // Pooled captures, free ones and ones waiting for the writer, as in SessionRecorder
+    private final ArrayBlockingQueue<Capture> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Capture> pending = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    // queued once by close to stop the writer, captures are refused once set
+    private final Capture end;
+    private volatile boolean closed;
+
+    // writer state, grown when a palette no longer fits
+    private ByteBuffer out;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final CRC32 crc = new CRC32();
+
+    // captures queued by the game thread and finished by the writer, guarded by this for awaitWrites
+    private volatile long requested;
+    private long finished;
+
+    // stats, written by one thread each
+    private volatile long snapshotsWritten, snapshotsDropped, bytesWritten, writeNanos;
+    private volatile IOException error;
+
+    /**
+     * Starts the writer thread.
+     * @param width width of the snapshot frames in cells.
+     * @param height height of the snapshot frames in cells.
+     */
+    public SnapshotWriter(int width, int height) {
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            free.add(new Capture(new CellFrame(width, height)));
+        }
+        end = new Capture(null);
+        // room for a palette of 256 colors, grown for larger ones
+        out = ByteBuffer.allocateDirect(Snapshot.HEADER_BYTES + 256 * 4 + FrameCodec.maxEncodedSize(free.peek().frame))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        writer = new Thread(this::write, "ASCIICanvas snapshot writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a copy of a frame and game state to be written to a file. Never blocks, the snapshot is skipped if the
+     * writer is behind. Only allocates when the state is larger than any state before it.
+     * @param file file to replace with the snapshot.
+     * @param frame frame about to be published, the same size as the writer.
+     * @param palette palette the frame is presented with.
+     * @param state game state, its remaining bytes are copied and its position is left unchanged. Null for none.
+     * @return false if the snapshot was skipped.
+     */
+    boolean capture(Path file, CellFrame frame, Color[] palette, ByteBuffer state) {
+        return capture(free.poll(), file, frame, palette, state);
+    }
+
+    // Like capture, but waits up to a timeout for the writer to free a capture, for snapshots taken once the game has
+    // stopped. Only one thread may capture at a time.
+    boolean capture(Path file, CellFrame frame, Color[] palette, ByteBuffer state, long timeoutMillis) {
+        Capture c = null;
+        try {
+            c = free.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return capture(c, file, frame, palette, state);
+    }
+
+    private boolean capture(Capture c, Path file, CellFrame frame, Color[] palette, ByteBuffer state) {
+        if (c == null || closed) {
+            if (c != null) {
+                free.offer(c);
+            }
+            snapshotsDropped++;
+            return false;
+        }
+        c.file = file;
+        c.frame.copyFrom(frame);
+        c.palette = palette;
+        int size = state == null ? 0 : state.remaining();
+        if (c.state.capacity() < size) {
+            c.state = ByteBuffer.allocateDirect(Math.max(size, c.state.capacity() * 2));
+        }
+        c.state.clear();
+        if (state != null) {
+            c.state.put(state.duplicate());
+        }
+        c.state.flip();
+        requested++;
+        pending.offer(c);
+        return true;
+    }
+
+    /**
+     * Waits until every snapshot queued so far is on disk.
+     * @param timeout longest time to wait.
+     * @param unit unit of the timeout.
+     * @return true if all were written, false if the timeout passed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitWrites(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = requested;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (finished < target) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes out every queued snapshot and stops the writer, waiting at most the given time. Snapshots captured after
+     * this are skipped. A snapshot still being written when the time runs out is abandoned, leaving the previous file
+     * in place, and reported by {@link #getError()}.
+     * @param timeoutMillis longest time to wait in milliseconds.
+     * @return true if every snapshot was written in time.
+     */
+    public boolean close(long timeoutMillis) {
+        if (writer.isAlive()) {
+            if (!closed) {
+                closed = true;
+                pending.offer(end);
+            }
+            try {
+                writer.join(Math.max(1, timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writer.isAlive()) {
+                error = new IOException("snapshot not written within " + timeoutMillis
+                        + "ms, the previous one is kept");
+                return false;
+            }
+        }
+        closed = true;
+        return true;
+    }
+
+    // True once close was called
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Writes out every queued snapshot and stops the writer.
+     * @throws IOException if the last failed snapshot failed with it.
+     */
+    @Override
+    public void close() throws IOException {
+        close(Long.MAX_VALUE);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return snapshots renamed into place.
+     */
+    public long getSnapshotsWritten() {
+        return snapshotsWritten;
+    }
+
+    /**
+     * @return snapshots skipped because the writer was behind.
+     */
+    public long getSnapshotsDropped() {
+        return snapshotsDropped;
+    }
+
+    /**
+     * @return bytes written over all snapshots.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return time spent encoding, writing, syncing and renaming snapshots.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * @return why the last failed snapshot failed, null if none did. A failed snapshot does not stop later ones.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    // Writer thread, writes captures until close queues the end marker
+    private void write() {
+        while (true) {
+            Capture c;
+            try {
+                c = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (c == end) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                writeSnapshot(c);
+                snapshotsWritten++;
+            } catch (IOException e) {
+                error = e;
+            }
+            writeNanos += System.nanoTime() - start;
+            c.file = null;
+            c.palette = null;
+            free.offer(c);
+            synchronized (this) {
+                finished++;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeSnapshot(Capture c) throws IOException {
+        int needed = Snapshot.HEADER_BYTES + c.palette.length * 4 + FrameCodec.maxEncodedSize(c.frame);
+        if (out.capacity() < needed) {
+            out = ByteBuffer.allocateDirect(needed).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        out.clear();
+        ((Buffer) out).position(Snapshot.HEADER_BYTES);
+        for (Color color : c.palette) {
+            out.putInt(color.getRGB());
+        }
+        int frameStart = out.position();
+        FrameCodec.encode(c.frame, null, out);
+        int frameBytes = out.position() - frameStart;
+        out.flip();
+
+        crc.reset();
+        ByteBuffer body = out.duplicate();
+        ((Buffer) body).position(Snapshot.HEADER_BYTES);
+        crc.update(body);
+        crc.update(c.state.duplicate());
+        out.putInt(0, Snapshot.MAGIC).putInt(4, Snapshot.VERSION).putInt(8, width).putInt(12, height)
+                .putInt(16, c.palette.length).putInt(20, frameBytes).putInt(24, c.state.remaining())
+                .putInt(28, (int) crc.getValue());
+
+        Path tmp = c.file.resolveSibling(c.file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            gather[0] = out;
+            gather[1] = c.state.duplicate();
+            long total = gather[0].remaining() + gather[1].remaining();
+            while (gather[1].hasRemaining() || gather[0].hasRemaining()) {
+                channel.write(gather);
+            }
+            gather[0] = null;
+            gather[1] = null;
+            // on disk before the rename makes it the snapshot
+            channel.force(false);
+            bytesWritten += total;
+        }
+        try {
+            Files.move(tmp, c.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, c.file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // A pooled copy of a frame and state, and where it goes
+    private static final class Capture {
+        final CellFrame frame;
+        Color[] palette;
+        ByteBuffer state = ByteBuffer.allocateDirect(0);
+        Path file;
+
+        Capture(CellFrame frame) {
+            this.frame = frame;
+        }
+    }
+}
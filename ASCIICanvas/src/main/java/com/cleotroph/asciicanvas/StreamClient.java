@@ -0,0 +1,159 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Watches a canvas streamed by a {@link StreamServer}, decoding every frame received and handing it to a
+ * {@link RenderBackend}. Run the class to watch in a window: {@code StreamClient host port [size]}.
+ */
+public class StreamClient implements Closeable {
+    private final SocketChannel channel;
+    private final int width, height;
+    private final CellFrame frame;
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private Color[] palette;
+    private long framesReceived;
+
+    /**
+     * Connects and reads the stream header.
+     * @param host host of the server.
+     * @param port port of the server.
+     * @throws IOException if the server cannot be reached or is not a canvas stream.
+     */
+    public StreamClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        if (!readFully(SessionRecorder.HEADER_BYTES) || in.getInt() != SessionRecorder.MAGIC
+                || in.getInt() != SessionRecorder.VERSION) {
+            channel.close();
+            throw new IOException("not a canvas stream: " + host + ":" + port);
+        }
+        width = in.getInt();
+        height = in.getInt();
+        frame = new CellFrame(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return newest frame received, updated in place by {@link #next}.
+     */
+    public CellFrame getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return palette of the newest frame.
+     */
+    public Color[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * @return number of frames received.
+     */
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Blocks until the next frame has been received and decoded.
+     * @return false once the server closed the stream.
+     * @throws IOException if reading fails or the stream ends inside a record.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (!readFully(SessionRecorder.RECORD_HEADER_BYTES)) {
+                return false;
+            }
+            int length = in.getInt();
+            byte type = in.get();
+            if (!readFully(length)) {
+                throw new EOFException("stream ended inside a record");
+            }
+            if (type == SessionRecorder.PALETTE) {
+                Color[] colors = new Color[in.getInt()];
+                for (int i = 0; i < colors.length; i++) {
+                    colors[i] = new Color(in.getInt(), true);
+                }
+                palette = colors;
+            } else {
+                FrameCodec.decode(in, length, frame, type == SessionRecorder.KEYFRAME);
+                framesReceived++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Presents every frame received until the server closes the stream.
+     * @param backend backend to present to, only called from the calling thread.
+     * @throws IOException if reading fails.
+     */
+    public void run(RenderBackend backend) throws IOException {
+        while (next()) {
+            backend.present(frame, palette);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Reads exactly n bytes into the start of the buffer and flips it, false on a clean end of stream before the first
+    private boolean readFully(int n) throws IOException {
+        if (in.capacity() < n) {
+            in = ByteBuffer.allocate(Math.max(n, in.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        in.clear();
+        in.limit(n);
+        while (in.hasRemaining()) {
+            if (channel.read(in) < 0) {
+                if (in.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("stream ended inside a record");
+            }
+        }
+        in.flip();
+        return true;
+    }
+
+    /**
+     * Opens a window showing a stream.
+     * @param args host, port and optionally the character size in pixels.
+     * @throws IOException if the server cannot be reached.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: StreamClient host port [size]");
+            return;
+        }
+        StreamClient client = new StreamClient(args[0], Integer.parseInt(args[1]));
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 14;
+        Frame window = new Frame(args[0] + ":" + args[1]);
+        ASCIICanvasManager manager = new ASCIICanvasManager(client.width * size, client.height * size,
+                client.width, client.height, size, null, window);
+        window.setBackground(new Color(0));
+        window.pack();
+        window.setLocationRelativeTo(null);
+        window.setVisible(true);
+        client.run(manager);
+        client.close();
+        window.dispose();
+    }
+}
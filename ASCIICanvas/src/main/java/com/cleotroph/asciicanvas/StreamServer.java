@@ -0,0 +1,463 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the frames of a canvas to any number of viewers over TCP, see {@link ASCIICanvas#startStreaming}. Watch a
+ * stream with a {@link StreamClient}.
+ * <p>
+ * The stream uses the recording format of {@link SessionRecorder}: the same header, then palette, keyframe and delta
+ * records. The render thread only copies each frame into a pooled frame, and wakes the server thread only when a
+ * viewer is waiting for a frame, so the cost to the game does not depend on the number of viewers. The server thread
+ * encodes the newest frame once into shared read only messages and sends them to each viewer with gathering writes
+ * from one {@link Selector}. A viewer still busy with an earlier frame skips the frames in between and gets a keyframe
+ * of the newest one when it catches up.
+ */
+public class StreamServer implements Closeable {
+    // frames captured ahead of the server thread before frames are dropped
+    private static final int POOL_SIZE = 3;
+
+    private final int width, height;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean open = true;
+
+    // pooled captures, free ones and ones waiting for the server thread
+    private final ArrayBlockingQueue<Capture> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Capture> pending = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // Server thread state. Messages of the newest frame: the delta from the frame before and a keyframe, encoded when
+    // the first viewer needs it. Messages are never changed once built, viewers send from duplicates.
+    private final List<Viewer> viewers = new ArrayList<>();
+    private final CellFrame previous;
+    private final ByteBuffer scratch;
+    private final ByteBuffer header;
+    private final ByteBuffer discard = ByteBuffer.allocate(256);
+    private long sequence = -1;
+    private long frameTime;
+    private long startNanos = -1;
+    private ByteBuffer delta, keyframe;
+    private Color[] palette;
+    private ByteBuffer paletteMessage;
+
+    // stats
+    private volatile long framesEncoded, framesSkipped, bytesSent, encodeNanos;
+    // counted by the render thread and the server thread
+    private final AtomicLong framesDropped = new AtomicLong();
+    private volatile int viewerCount;
+    private volatile IOException error;
+
+    // set by the server thread while a viewer has sent its last frame, only then does a capture wake it
+    private volatile boolean awaitingFrame;
+
+    /**
+     * Binds the server socket and starts the server thread.
+     * @param address address to listen on, port 0 picks a free port.
+     * @param width width of the streamed frames in cells.
+     * @param height height of the streamed frames in cells.
+     * @throws IOException if the address cannot be bound.
+     */
+    public StreamServer(SocketAddress address, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            free.add(new Capture(new CellFrame(width, height)));
+        }
+        previous = new CellFrame(width, height);
+        scratch = ByteBuffer.allocateDirect(SessionRecorder.RECORD_HEADER_BYTES + FrameCodec.maxEncodedSize(previous))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer h = ByteBuffer.allocate(SessionRecorder.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        // a stream has no keyframe interval, keyframes are sent when a viewer needs one
+        h.putInt(SessionRecorder.MAGIC).putInt(SessionRecorder.VERSION).putInt(width).putInt(height).putInt(0)
+                .rewind();
+        header = h.asReadOnlyBuffer();
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::serve, "ASCIICanvas stream server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a copy of a frame for the viewers, replacing the oldest frame not yet encoded when the server thread is
+     * behind. Never blocks or allocates.
+     * @param frame frame about to be published, the same size as the stream.
+     * @param palette palette the frame is presented with.
+     */
+    void capture(CellFrame frame, Color[] palette) {
+        Capture c = free.poll();
+        if (c == null) {
+            // keeps the newest frames for when a viewer next needs one
+            c = pending.poll();
+            framesDropped.incrementAndGet();
+            if (c == null) {
+                // the server thread holds them all
+                return;
+            }
+        }
+        c.frame.copyFrom(frame);
+        c.palette = palette;
+        c.nanos = System.nanoTime();
+        pending.offer(c);
+        if (awaitingFrame) {
+            // a waiting viewer goes from idle to writing, viewers still writing pick the frame up on their own
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Disconnects every viewer and closes the server socket.
+     */
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of connected viewers.
+     */
+    public int getViewerCount() {
+        return viewerCount;
+    }
+
+    /**
+     * @return frames encoded and offered to the viewers.
+     */
+    public long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    /**
+     * @return frames of the game never encoded, because the server thread was behind or no viewer was waiting for
+     * them.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * @return frames skipped by slow viewers, summed over all viewers.
+     */
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * @return bytes sent to all viewers.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return time spent encoding frames, once per frame however many viewers there are.
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * @return why the server thread stopped, null if it is running or was closed without failing. A failing viewer
+     * only disconnects that viewer and is not reported here.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    // Server thread
+    private void serve() {
+        try {
+            while (open) {
+                if (awaitingFrame && !pending.isEmpty()) {
+                    // captured before the flag was seen set, nothing woke us for it
+                    selector.selectNow();
+                } else {
+                    selector.select();
+                }
+
+                // only the newest capture is encoded, the others are dropped
+                Capture c = null, next;
+                while ((next = pending.poll()) != null) {
+                    if (c != null) {
+                        framesDropped.incrementAndGet();
+                        release(c);
+                    }
+                    c = next;
+                }
+                if (c != null) {
+                    encode(c);
+                    release(c);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Viewer v = (Viewer) key.attachment();
+                    if (key.isReadable()) {
+                        read(v);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(v);
+                    }
+                }
+
+                // viewers done with their last frame get the new one right away
+                if (c != null) {
+                    for (int i = viewers.size() - 1; i >= 0; i--) {
+                        Viewer v = viewers.get(i);
+                        if (!v.sending()) {
+                            flush(v);
+                        }
+                    }
+                }
+                boolean waiting = false;
+                for (int i = 0; i < viewers.size() && !waiting; i++) {
+                    waiting = !viewers.get(i).sending();
+                }
+                awaitingFrame = waiting;
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            for (int i = viewers.size() - 1; i >= 0; i--) {
+                disconnect(viewers.get(i));
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    private void release(Capture c) {
+        c.palette = null;
+        free.offer(c);
+    }
+
+    private void encode(Capture c) {
+        if (startNanos < 0) {
+            startNanos = c.nanos;
+        }
+        frameTime = c.nanos - startNanos;
+        if (c.palette != palette) {
+            palette = c.palette;
+            ByteBuffer m = ByteBuffer.allocate(SessionRecorder.RECORD_HEADER_BYTES + 4 + palette.length * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(m.capacity() - SessionRecorder.RECORD_HEADER_BYTES).put(SessionRecorder.PALETTE)
+                    .putLong(frameTime).putInt(palette.length);
+            for (Color color : palette) {
+                m.putInt(color.getRGB());
+            }
+            m.flip();
+            paletteMessage = m.asReadOnlyBuffer();
+        }
+
+        long start = System.nanoTime();
+        delta = message(SessionRecorder.DELTA, c.frame, previous);
+        previous.copyFrom(c.frame);
+        keyframe = null;
+        sequence++;
+        encodeNanos += System.nanoTime() - start;
+        framesEncoded++;
+    }
+
+    // Encodes a record into a buffer of its own
+    private ByteBuffer message(byte type, CellFrame frame, CellFrame from) {
+        scratch.clear();
+        scratch.putInt(0).put(type).putLong(frameTime);
+        FrameCodec.encode(frame, from, scratch);
+        scratch.putInt(0, scratch.position() - SessionRecorder.RECORD_HEADER_BYTES);
+        scratch.flip();
+        ByteBuffer m = ByteBuffer.allocate(scratch.remaining());
+        m.put(scratch).flip();
+        return m.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer keyframe() {
+        if (keyframe == null) {
+            long start = System.nanoTime();
+            keyframe = message(SessionRecorder.KEYFRAME, previous, null);
+            encodeNanos += System.nanoTime() - start;
+        }
+        return keyframe;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Viewer v = new Viewer(channel);
+        v.key = channel.register(selector, SelectionKey.OP_READ, v);
+        // the header goes out right away, the newest frame follows it
+        v.out[v.count++] = header.duplicate();
+        viewers.add(v);
+        viewerCount = viewers.size();
+        flush(v);
+    }
+
+    // Viewers send nothing, reading only notices when they disconnect
+    private void read(Viewer v) {
+        try {
+            int n;
+            do {
+                discard.clear();
+                n = v.channel.read(discard);
+            } while (n > 0);
+            if (n < 0) {
+                disconnect(v);
+            }
+        } catch (IOException e) {
+            disconnect(v);
+        }
+    }
+
+    // Writes as much of the queued messages as the socket takes, queueing the newest frame whenever a viewer is done
+    private void flush(Viewer v) {
+        try {
+            while (true) {
+                if (v.sending()) {
+                    bytesSent += v.channel.write(v.out, v.index, v.count - v.index);
+                    while (v.index < v.count && !v.out[v.index].hasRemaining()) {
+                        v.out[v.index++] = null;
+                    }
+                    if (v.sending()) {
+                        v.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (!queueNext(v)) {
+                    v.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            disconnect(v);
+        }
+    }
+
+    // Queues the messages taking a viewer to the newest frame, false if it already has it
+    private boolean queueNext(Viewer v) {
+        if (sequence < 0 || v.sent == sequence) {
+            return false;
+        }
+        v.index = 0;
+        v.count = 0;
+        if (v.palette != palette) {
+            v.out[v.count++] = paletteMessage.duplicate();
+            v.palette = palette;
+        }
+        if (v.sent >= 0 && v.sent == sequence - 1) {
+            v.out[v.count++] = delta.duplicate();
+        } else {
+            if (v.sent >= 0) {
+                framesSkipped += sequence - v.sent - 1;
+            }
+            v.out[v.count++] = keyframe().duplicate();
+        }
+        v.sent = sequence;
+        return true;
+    }
+
+    private void disconnect(Viewer v) {
+        v.key.cancel();
+        try {
+            v.channel.close();
+        } catch (IOException ignored) {
+            // already gone
+        }
+        viewers.remove(v);
+        viewerCount = viewers.size();
+    }
+
+    // A connected viewer and the messages being sent to it
+    private static final class Viewer {
+        final SocketChannel channel;
+        SelectionKey key;
+        // palette and frame, or the header
+        final ByteBuffer[] out = new ByteBuffer[2];
+        int index, count;
+        // sequence of the last frame queued, -1 before the first
+        long sent = -1;
+        Color[] palette;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean sending() {
+            return index < count;
+        }
+    }
+
+    // A pooled copy of a frame and when it was captured
+    private static final class Capture {
+        final CellFrame frame;
+        Color[] palette;
+        long nanos;
+
+        Capture(CellFrame frame) {
+            this.frame = frame;
+        }
+    }
+}
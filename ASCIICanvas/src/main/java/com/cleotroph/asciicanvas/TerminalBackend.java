@@ -0,0 +1,376 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Backend that writes frames to an ANSI/VT terminal as escape sequences. Only cells that changed since the last frame
+ * are sent, cursor moves and color changes are coalesced, and output is encoded into a reused direct buffer so a frame
+ * allocates nothing.
+ */
+public class TerminalBackend implements RenderBackend {
+    // size of the reused output buffer, flushed early when a frame does not fit
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // longest escape sequences plus a cell, the buffer is flushed when less than this remains
+    private static final int MAX_CELL_BYTES = 96;
+
+    // style bits of a packed cell: colors and attributes
+    private static final long STYLE_MASK = ~0xFFFFL;
+
+    // style of an empty cell, foreground 0xFFFF stands for the terminal default
+    private static final long BLANK = ' ' | 0xFFFFL << 16;
+
+    // style bits that show on an empty cell: background and underline
+    private static final long BLANK_VISIBLE_MASK = 0xFFFFL << 32 | (long) Cell.UNDERLINE << 48;
+
+    private static final byte ESC = 0x1B;
+
+    private final WritableByteChannel out;
+    private final boolean trueColor;
+    private final int width, height;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // last state sent to the terminal, in frame chunk order
+    private long[] shownCells;
+    private boolean[] shownTouched;
+    private Color[] shownPalette;
+    private int[] paletteCodes;
+    private int cursorX = -1, cursorY = -1;
+    private long currentStyle = -1;
+
+    // encoding stats for the last frame and since creation
+    private volatile int bytesLastFrame;
+    private volatile long encodeNanosLastFrame;
+    private volatile long totalBytes;
+    private volatile long frames;
+
+    /**
+     * Writes to stdout using 256 color codes.
+     * @param cx character width of the frames that will be presented.
+     * @param cy character height of the frames that will be presented.
+     */
+    public TerminalBackend(int cx, int cy) {
+        this(cx, cy, new FileOutputStream(FileDescriptor.out).getChannel(), false);
+    }
+
+    /**
+     * @param cx character width of the frames that will be presented.
+     * @param cy character height of the frames that will be presented.
+     * @param out channel the escape stream is written to.
+     * @param trueColor true to send 24 bit colors, false to map the palette to the 256 color cube.
+     */
+    public TerminalBackend(int cx, int cy, WritableByteChannel out, boolean trueColor) {
+        this.width = cx;
+        this.height = cy;
+        this.out = out;
+        this.trueColor = trueColor;
+    }
+
+    @Override
+    public void present(CellFrame frame, Color[] palette) {
+        long start = System.nanoTime();
+        int sent = 0;
+        boolean all = false;
+        if (shownCells == null || shownCells.length != frame.cells.length) {
+            shownCells = new long[frame.cells.length];
+            shownTouched = new boolean[frame.touched.length];
+            // reset attributes, hide the cursor and clear the screen
+            putCsi();
+            buffer.put((byte) '0').put((byte) 'm');
+            putCsi();
+            buffer.put((byte) '?').put((byte) '2').put((byte) '5').put((byte) 'l');
+            putCsi();
+            buffer.put((byte) '2').put((byte) 'J');
+            cursorX = -1;
+            currentStyle = -1;
+            all = true;
+        }
+        if (palette != shownPalette) {
+            // appended colors leave what is on screen valid
+            boolean extended = CellRasterizer.extendsPalette(palette, shownPalette);
+            mapPalette(palette, extended);
+            all |= !extended;
+        }
+
+        // Rows are walked in screen order to keep cursor moves short, skipping the parts of chunks that are blank both
+        // on screen and in the frame
+        long[] cells = frame.cells;
+        int cwidth = frame.width;
+        for (int y = 0; y < frame.height; y++) {
+            int chunkRow = (y >> CellFrame.CHUNK_SHIFT) * frame.chunksX;
+            for (int cx = 0; cx < frame.chunksX; cx++) {
+                if (!all && !frame.touched[chunkRow + cx] && !shownTouched[chunkRow + cx]) {
+                    continue;
+                }
+                int x0 = cx << CellFrame.CHUNK_SHIFT;
+                int x1 = Math.min(cwidth, x0 + CellFrame.CHUNK);
+                int pos = frame.index(x0, y);
+                for (int x = x0; x < x1; x++, pos++) {
+                    long cell = normalize(cells[pos]);
+                    if (!all && cell == shownCells[pos]) {
+                        continue;
+                    }
+                    if (buffer.remaining() < MAX_CELL_BYTES) {
+                        sent += flush();
+                    }
+                    moveTo(frame, x, y);
+                    if (!styleMatches(cell)) {
+                        putStyle(cell & STYLE_MASK);
+                    }
+                    putChar((char) cell);
+                    shownCells[pos] = cell;
+                    cursorX = x + 1 < cwidth ? x + 1 : -1;
+                }
+            }
+        }
+        System.arraycopy(frame.touched, 0, shownTouched, 0, shownTouched.length);
+        sent += flush();
+
+        bytesLastFrame = sent;
+        totalBytes += sent;
+        frames++;
+        encodeNanosLastFrame = System.nanoTime() - start;
+    }
+
+    /**
+     * Restores the cursor and attributes, should be called once the terminal is no longer drawn to.
+     */
+    public void close() {
+        putCsi();
+        buffer.put((byte) '0').put((byte) 'm');
+        putCsi();
+        buffer.put((byte) '?').put((byte) '2').put((byte) '5').put((byte) 'h');
+        flush();
+    }
+
+    // Moves the cursor to (x, y) with the cheapest sequence: nothing, reprinting a short gap, or an absolute move
+    private void moveTo(CellFrame frame, int x, int y) {
+        if (cursorY == y && cursorX >= 0 && cursorX <= x) {
+            int gap = x - cursorX;
+            if (gap == 0) {
+                return;
+            }
+            if (gap <= 3 && reprintable(frame, cursorX, x, y)) {
+                for (int i = cursorX; i < x; i++) {
+                    putChar((char) shownCells[frame.index(i, y)]);
+                }
+                cursorX = x;
+                return;
+            }
+        }
+        putCsi();
+        putInt(y + 1);
+        buffer.put((byte) ';');
+        putInt(x + 1);
+        buffer.put((byte) 'H');
+        cursorX = x;
+        cursorY = y;
+    }
+
+    // A gap can be reprinted when the terminal already shows it and it needs no style change
+    private boolean reprintable(CellFrame frame, int fromX, int toX, int y) {
+        for (int x = fromX; x < toX; x++) {
+            long cell = shownCells[frame.index(x, y)];
+            if ((char) cell > 0x7F || !styleMatches(cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Control characters become spaces, and every cell that shows nothing collapses to BLANK
+    private static long normalize(long cell) {
+        long visible = (cell & STYLE_MASK) | visible(Cell.glyph(cell));
+        if ((char) visible == ' ' && (cell & BLANK_VISIBLE_MASK) == 0) {
+            return BLANK;
+        }
+        return visible;
+    }
+
+    // Whether the current terminal style already draws the cell correctly
+    private boolean styleMatches(long cell) {
+        if (currentStyle < 0) {
+            return false;
+        }
+        if (cell == BLANK) {
+            return (currentStyle & BLANK_VISIBLE_MASK) == 0;
+        }
+        return (cell & STYLE_MASK) == currentStyle;
+    }
+
+    // Resets the attributes and sets every part of the style in one SGR sequence
+    private void putStyle(long style) {
+        putCsi();
+        buffer.put((byte) '0');
+        int attributes = Cell.attributes(style);
+        if ((attributes & Cell.BOLD) != 0) {
+            buffer.put((byte) ';').put((byte) '1');
+        }
+        if ((attributes & Cell.UNDERLINE) != 0) {
+            buffer.put((byte) ';').put((byte) '4');
+        }
+        int foreground = Cell.foreground(style);
+        if (foreground != 0xFFFF) {
+            putColor('3', foreground);
+        }
+        int background = Cell.background(style);
+        if (background != Cell.NO_BACKGROUND) {
+            putColor('4', background);
+        }
+        buffer.put((byte) 'm');
+        currentStyle = style;
+    }
+
+    // Color parameters of an SGR sequence, layer is '3' for foreground and '4' for background
+    private void putColor(char layer, int color) {
+        int code = color < paletteCodes.length ? paletteCodes[color] : trueColor ? 0xFFFFFF : 15;
+        buffer.put((byte) ';').put((byte) layer).put((byte) '8').put((byte) ';');
+        if (trueColor) {
+            buffer.put((byte) '2').put((byte) ';');
+            putInt((code >> 16) & 0xFF);
+            buffer.put((byte) ';');
+            putInt((code >> 8) & 0xFF);
+            buffer.put((byte) ';');
+            putInt(code & 0xFF);
+        } else {
+            buffer.put((byte) '5').put((byte) ';');
+            putInt(code);
+        }
+    }
+
+    // Precomputes the SGR color of every palette entry, only the new ones if the palette was extended
+    private void mapPalette(Color[] palette, boolean extended) {
+        int known = extended ? paletteCodes.length : 0;
+        paletteCodes = extended ? Arrays.copyOf(paletteCodes, palette.length) : new int[palette.length];
+        for (int i = known; i < palette.length; i++) {
+            int rgb = palette[i].getRGB() & 0xFFFFFF;
+            paletteCodes[i] = trueColor ? rgb : to256(rgb);
+        }
+        if (!extended) {
+            currentStyle = -1;
+        }
+        shownPalette = palette;
+    }
+
+    // Nearest entry of the xterm 6x6x6 color cube or grayscale ramp
+    static int to256(int rgb) {
+        int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+        int cr = cubeStep(r), cg = cubeStep(g), cb = cubeStep(b);
+        int cube = 16 + 36 * cr + 6 * cg + cb;
+        int cubeError = sq(r - cubeLevel(cr)) + sq(g - cubeLevel(cg)) + sq(b - cubeLevel(cb));
+
+        int gray = Math.max(0, Math.min(23, ((r + g + b) / 3 - 8 + 5) / 10));
+        int level = 8 + gray * 10;
+        int grayError = sq(r - level) + sq(g - level) + sq(b - level);
+        return grayError < cubeError ? 232 + gray : cube;
+    }
+
+    private static int cubeStep(int v) {
+        return v < 48 ? 0 : v < 115 ? 1 : (v - 35) / 40;
+    }
+
+    private static int cubeLevel(int step) {
+        return step == 0 ? 0 : 55 + step * 40;
+    }
+
+    private static int sq(int v) {
+        return v * v;
+    }
+
+    // Control characters and empty cells are shown as spaces
+    private static char visible(char c) {
+        return c < 0x20 || c == 0x7F ? ' ' : c;
+    }
+
+    // UTF-8 encodes a character, surrogates are replaced as they cannot be encoded alone
+    private void putChar(char c) {
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    private void putCsi() {
+        buffer.put(ESC).put((byte) '[');
+    }
+
+    // Writes a non negative int in decimal without going through a String
+    private void putInt(int v) {
+        int div = 1;
+        while (v / div >= 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            buffer.put((byte) ('0' + (v / div) % 10));
+        }
+    }
+
+    // Writes out everything encoded so far
+    private int flush() {
+        buffer.flip();
+        int written = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+        return written;
+    }
+
+    /**
+     * @return bytes written for the last frame.
+     */
+    public int getBytesLastFrame() {
+        return bytesLastFrame;
+    }
+
+    /**
+     * @return time spent encoding and writing the last frame, in nanoseconds.
+     */
+    public long getEncodeNanosLastFrame() {
+        return encodeNanosLastFrame;
+    }
+
+    /**
+     * @return bytes written since creation.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return frames presented since creation.
+     */
+    public long getFramesPresented() {
+        return frames;
+    }
+
+    @Override
+    public int getSurfaceWidth() {
+        return width;
+    }
+
+    @Override
+    public int getSurfaceHeight() {
+        return height;
+    }
+}
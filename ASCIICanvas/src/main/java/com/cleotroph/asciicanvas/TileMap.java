@@ -0,0 +1,308 @@
+package com.cleotroph.asciicanvas;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * World of packed cells (see {@link Cell}) stored in a file and memory mapped a chunk at a time, so worlds far larger
+ * than the heap can be scrolled through with a {@link Viewport}.
+ * <p>
+ * The file is a small header followed by every 32x32 chunk as 1024 little endian longs, in the same chunk order as a
+ * {@link CellFrame}. Chunks are mapped on first access and at most {@link #setResidentLimit} stay mapped, the least
+ * recently used ones being dropped first. A tile map is not thread safe, use it from the render thread.
+ */
+public class TileMap implements Closeable {
+    // "ACTM"
+    private static final int MAGIC = 0x4143544D;
+    private static final int VERSION = 1;
+    // a page, so every chunk is mapped page aligned
+    static final int HEADER_BYTES = 4096;
+    private static final int CHUNK_BYTES = CellFrame.CHUNK_CELLS * Long.BYTES;
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final int width, height;
+    private final int chunksX, chunksY;
+
+    // mapped chunks by chunk id and the regions backing them, null when not resident
+    private final LongBuffer[] mapped;
+    private final MappedByteBuffer[] regions;
+
+    // Resident set, evicted in clock order: chunk ids in the order they were mapped, and a referenced bit per chunk
+    // that gives recently used chunks a second chance
+    private int[] clock = new int[256];
+    private int residentCount;
+    private int hand;
+    private final boolean[] referenced;
+
+    // stats, and a counter bumped by every write so viewports know to fetch again
+    private long pageIns;
+    private long modCount;
+
+    private TileMap(FileChannel channel, boolean writable, int width, int height) {
+        this.channel = channel;
+        this.mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        this.width = width;
+        this.height = height;
+        chunksX = (width + CellFrame.CHUNK_MASK) >> CellFrame.CHUNK_SHIFT;
+        chunksY = (height + CellFrame.CHUNK_MASK) >> CellFrame.CHUNK_SHIFT;
+        mapped = new LongBuffer[chunksX * chunksY];
+        regions = new MappedByteBuffer[mapped.length];
+        referenced = new boolean[mapped.length];
+    }
+
+    /**
+     * Creates an empty world, replacing any existing file. The file is sized up front but left sparse where the file
+     * system allows it.
+     * @param file file to store the world in.
+     * @param width width in cells.
+     * @param height height in cells.
+     * @return writable tile map.
+     * @throws IOException if the file cannot be created.
+     */
+    public static TileMap create(Path file, int width, int height) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        TileMap map = new TileMap(channel, true, width, height);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).rewind();
+        channel.write(header, 0);
+        // extend the file to its full size by writing its last byte
+        long size = HEADER_BYTES + (long) map.mapped.length * CHUNK_BYTES;
+        channel.write(ByteBuffer.allocate(1), size - 1);
+        return map;
+    }
+
+    /**
+     * Opens a world created by {@link #create}.
+     * @param file file the world is stored in.
+     * @param writable true to allow {@link #set}.
+     * @return tile map.
+     * @throws IOException if the file cannot be read or is not a tile map.
+     */
+    public static TileMap open(Path file, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < 16 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            channel.close();
+            throw new IOException("not a tile map: " + file);
+        }
+        return new TileMap(channel, writable, header.getInt(), header.getInt());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x x of the cell.
+     * @param y y of the cell.
+     * @return packed cell, 0 for an empty cell or one outside the map.
+     */
+    public long cellAt(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        return chunkOf(x, y).get(offsetOf(x, y));
+    }
+
+    /**
+     * @param x x of the cell, must be in the map.
+     * @param y y of the cell, must be in the map.
+     * @param cell packed cell, see {@link Cell#pack}.
+     */
+    public void set(int x, int y, long cell) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") outside " + width + "x" + height);
+        }
+        chunkOf(x, y).put(offsetOf(x, y), cell);
+        modCount++;
+    }
+
+    /**
+     * Writes a run of cells into one row, for filling the map in bulk.
+     * @param x x of the first cell, the run must lie in the map.
+     * @param y y of the row.
+     * @param src packed cells.
+     * @param from index of the first cell in src.
+     * @param n number of cells.
+     */
+    public void writeRow(int x, int y, long[] src, int from, int n) {
+        if (x < 0 || y < 0 || x + n > width || y >= height) {
+            throw new IndexOutOfBoundsException("row of " + n + " at (" + x + ", " + y + ") outside " + width + "x"
+                    + height);
+        }
+        int x1 = x + n;
+        while (x < x1) {
+            int end = Math.min(x1, (x | CellFrame.CHUNK_MASK) + 1);
+            LongBuffer chunk = chunkOf(x, y);
+            // through Buffer so the call also links on Java 8
+            ((Buffer) chunk).position(offsetOf(x, y));
+            chunk.put(src, from, end - x);
+            from += end - x;
+            x = end;
+        }
+        modCount++;
+    }
+
+    /**
+     * Reads a run of cells of one row, cells outside the map read as 0. Each chunk the run crosses is copied in bulk.
+     * @param x x of the first cell.
+     * @param y y of the row.
+     * @param dst array receiving the cells.
+     * @param to index of the first cell in dst.
+     * @param n number of cells.
+     */
+    public void readRow(int x, int y, long[] dst, int to, int n) {
+        int x1 = x + n;
+        if (y < 0 || y >= height || x1 <= 0 || x >= width) {
+            Arrays.fill(dst, to, to + n, 0L);
+            return;
+        }
+        if (x < 0) {
+            Arrays.fill(dst, to, to - x, 0L);
+            to -= x;
+            x = 0;
+        }
+        if (x1 > width) {
+            Arrays.fill(dst, to + (width - x), to + (x1 - x), 0L);
+            x1 = width;
+        }
+        while (x < x1) {
+            int end = Math.min(x1, (x | CellFrame.CHUNK_MASK) + 1);
+            LongBuffer chunk = chunkOf(x, y);
+            ((Buffer) chunk).position(offsetOf(x, y));
+            chunk.get(dst, to, end - x);
+            to += end - x;
+            x = end;
+        }
+    }
+
+    /**
+     * Sets how many chunks may stay mapped at once, each covers 8KB of the file.
+     * @param chunks resident chunk limit, at least 1.
+     */
+    public void setResidentLimit(int chunks) {
+        chunks = Math.max(1, chunks);
+        while (residentCount > chunks) {
+            evict();
+        }
+        int[] resized = new int[chunks];
+        for (int i = 0; i < residentCount; i++) {
+            resized[i] = clock[(hand + i) % clock.length];
+        }
+        clock = resized;
+        hand = 0;
+    }
+
+    /**
+     * @return number of chunks currently mapped.
+     */
+    public int getResidentChunks() {
+        return residentCount;
+    }
+
+    /**
+     * @return number of times a chunk was mapped since the map was opened.
+     */
+    public long getPageIns() {
+        return pageIns;
+    }
+
+    // Changes whenever a cell is written
+    long modCount() {
+        return modCount;
+    }
+
+    /**
+     * Unmaps every chunk and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < residentCount; i++) {
+            release(clock[(hand + i) % clock.length]);
+        }
+        residentCount = 0;
+        channel.close();
+    }
+
+    // Drops a chunk from the resident set and unmaps it right away
+    private void release(int id) {
+        MappedByteBuffer region = regions[id];
+        mapped[id] = null;
+        regions[id] = null;
+        if (region != null) {
+            MappedFiles.unmap(region);
+        }
+    }
+
+    private static int offsetOf(int x, int y) {
+        return ((y & CellFrame.CHUNK_MASK) << CellFrame.CHUNK_SHIFT) | (x & CellFrame.CHUNK_MASK);
+    }
+
+    // Resident chunk holding (x, y), mapped if needed
+    private LongBuffer chunkOf(int x, int y) {
+        int id = (y >> CellFrame.CHUNK_SHIFT) * chunksX + (x >> CellFrame.CHUNK_SHIFT);
+        LongBuffer chunk = mapped[id];
+        if (chunk == null) {
+            chunk = pageIn(id);
+        }
+        referenced[id] = true;
+        return chunk;
+    }
+
+    private LongBuffer pageIn(int id) {
+        if (residentCount == clock.length) {
+            evict();
+        }
+        MappedByteBuffer region;
+        try {
+            region = channel.map(mode, HEADER_BYTES + (long) id * CHUNK_BYTES, CHUNK_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LongBuffer chunk = region.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        regions[id] = region;
+        mapped[id] = chunk;
+        clock[(hand + residentCount) % clock.length] = id;
+        residentCount++;
+        pageIns++;
+        return chunk;
+    }
+
+    // Drops the first chunk under the clock hand that was not used since the hand last passed it
+    private void evict() {
+        while (true) {
+            int id = clock[hand];
+            if (referenced[id]) {
+                // second chance, moved to the back of the clock
+                referenced[id] = false;
+                hand = (hand + 1) % clock.length;
+                clock[(hand + residentCount - 1) % clock.length] = id;
+            } else {
+                release(id);
+                hand = (hand + 1) % clock.length;
+                residentCount--;
+                return;
+            }
+        }
+    }
+}
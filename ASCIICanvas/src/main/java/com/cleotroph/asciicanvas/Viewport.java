@@ -0,0 +1,159 @@
+package com.cleotroph.asciicanvas;
+
+/**
+ * Window onto a {@link TileMap}, drawn with {@link ASCIICanvas#drawViewport}. The visible cells are kept between
+ * frames in a ring of rows: scrolling vertically only reads the rows that come into view, scrolling horizontally
+ * shifts the kept rows and reads the columns that come into view. Writes to the map make the next draw read
+ * everything again.
+ */
+public class Viewport {
+    private final TileMap map;
+    private final int width, height;
+
+    // visible cells, row r of the view lives at ((top + r) % height) * width
+    private final long[] rows;
+    private int top;
+
+    // camera, and the camera the rows were last fetched for
+    private int cameraX, cameraY;
+    private int shownX, shownY;
+    private long shownMod;
+    private boolean valid;
+
+    // rows and cells read from the map by the last update
+    private int rowsFetched, cellsFetched;
+
+    /**
+     * @param map world to show.
+     * @param width width of the view in cells.
+     * @param height height of the view in cells.
+     * @throws IllegalArgumentException if the view is empty.
+     */
+    public Viewport(TileMap map, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("view must be at least one cell: " + width + "x" + height);
+        }
+        this.map = map;
+        this.width = width;
+        this.height = height;
+        rows = new long[width * height];
+    }
+
+    /**
+     * @param x map x shown in the top left cell of the view.
+     * @param y map y shown in the top left cell of the view.
+     */
+    public void setCamera(int x, int y) {
+        cameraX = x;
+        cameraY = y;
+    }
+
+    /**
+     * Scrolls the camera.
+     * @param dx cells to move right.
+     * @param dy cells to move down.
+     */
+    public void move(int dx, int dy) {
+        cameraX += dx;
+        cameraY += dy;
+    }
+
+    public int getCameraX() {
+        return cameraX;
+    }
+
+    public int getCameraY() {
+        return cameraY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return rows read from the map for the last draw, partial rows included.
+     */
+    public int getRowsFetched() {
+        return rowsFetched;
+    }
+
+    /**
+     * @return cells read from the map for the last draw.
+     */
+    public int getCellsFetched() {
+        return cellsFetched;
+    }
+
+    /**
+     * Copies the view into a frame a row at a time, clipped to the frame.
+     * @param frame frame to draw into.
+     * @param x x of the top left of the view in the frame.
+     * @param y y of the top left of the view in the frame.
+     */
+    void drawInto(CellFrame frame, int x, int y) {
+        update();
+        int from = Math.max(0, -x);
+        int x1 = Math.min(frame.width, x + width);
+        int y1 = Math.min(frame.height, y + height);
+        if (x + from >= x1) {
+            return;
+        }
+        for (int fy = Math.max(0, y); fy < y1; fy++) {
+            int row = ((top + fy - y) % height) * width;
+            frame.writeCells(x + from, fy, rows, row + from, x1 - x - from);
+        }
+    }
+
+    // Brings the rows up to date with the camera, reading as little of the map as possible
+    private void update() {
+        rowsFetched = 0;
+        cellsFetched = 0;
+        int dx = cameraX - shownX;
+        int dy = cameraY - shownY;
+        if (!valid || map.modCount() != shownMod || Math.abs(dx) >= width || Math.abs(dy) >= height) {
+            top = 0;
+            for (int r = 0; r < height; r++) {
+                fetch(r, 0, width);
+            }
+        } else if (dx != 0 || dy != 0) {
+            // rotate the ring so the kept rows line up with the new camera, then read the rows that scrolled in
+            top = Math.floorMod(top + dy, height);
+            int keptFrom = dy > 0 ? 0 : -dy;
+            int keptTo = dy > 0 ? height - dy : height;
+            for (int r = 0; r < height; r++) {
+                if (r < keptFrom || r >= keptTo) {
+                    fetch(r, 0, width);
+                } else if (dx != 0) {
+                    // kept rows shift sideways and read the columns that scrolled in
+                    int start = rowStart(r);
+                    if (dx > 0) {
+                        System.arraycopy(rows, start + dx, rows, start, width - dx);
+                        fetch(r, width - dx, dx);
+                    } else {
+                        System.arraycopy(rows, start, rows, start - dx, width + dx);
+                        fetch(r, 0, -dx);
+                    }
+                }
+            }
+        }
+        shownX = cameraX;
+        shownY = cameraY;
+        shownMod = map.modCount();
+        valid = true;
+    }
+
+    private int rowStart(int r) {
+        return ((top + r) % height) * width;
+    }
+
+    // Reads n cells of view row r starting at view column c from the map
+    private void fetch(int r, int c, int n) {
+        map.readRow(cameraX + c, cameraY + r, rows, rowStart(r) + c, n);
+        rowsFetched++;
+        cellsFetched += n;
+    }
+}
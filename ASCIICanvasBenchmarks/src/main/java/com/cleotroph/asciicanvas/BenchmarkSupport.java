@@ -0,0 +1,104 @@
+package com.cleotroph.asciicanvas;
+
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.util.Random;
+
+/**
+ * Shared fixtures of the benchmarks: grid size parsing, a canvas that needs no window and frame filling.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    // Parses a "WxH" grid parameter into {width, height}
+    static int[] grid(String grid) {
+        int x = grid.indexOf('x');
+        return new int[]{Integer.parseInt(grid.substring(0, x)), Integer.parseInt(grid.substring(x + 1))};
+    }
+
+    // Fills every cell of a frame with printable glyphs in varied colors, backgrounds and attributes
+    static void fill(CellFrame frame, long seed) {
+        Random random = new Random(seed);
+        for (int y = 0; y < frame.height; y++) {
+            for (int x = 0; x < frame.width; x++) {
+                frame.set(frame.index(x, y), randomCell(random));
+            }
+        }
+    }
+
+    // Overwrites one row of a frame
+    static void fillRow(CellFrame frame, int y, Random random) {
+        for (int x = 0; x < frame.width; x++) {
+            frame.set(frame.index(x, y), randomCell(random));
+        }
+    }
+
+    private static long randomCell(Random random) {
+        int background = random.nextInt(4) == 0 ? random.nextInt(16) : Cell.NO_BACKGROUND;
+        return Cell.pack((char) ('!' + random.nextInt(94)), random.nextInt(16), background, random.nextInt(4));
+    }
+
+    /**
+     * Canvas on a backend that discards frames, used to time the draw calls alone.
+     */
+    static final class Canvas extends ASCIICanvas {
+        Canvas(int cx, int cy) {
+            super(cx, cy, new NullBackend(cx, cy));
+        }
+
+        @Override
+        public void load() {
+        }
+
+        @Override
+        public void save() {
+        }
+
+        @Override
+        public void render() {
+        }
+
+        @Override
+        public void tick() {
+        }
+
+        @Override
+        public void keyTyped(KeyEvent e) {
+        }
+
+        @Override
+        public void keyPressed(KeyEvent e) {
+        }
+
+        @Override
+        public void keyReleased(KeyEvent e) {
+        }
+    }
+
+    /**
+     * Backend that drops every frame.
+     */
+    static final class NullBackend implements RenderBackend {
+        private final int width, height;
+
+        NullBackend(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void present(CellFrame frame, Color[] palette) {
+        }
+
+        @Override
+        public int getSurfaceWidth() {
+            return width;
+        }
+
+        @Override
+        public int getSurfaceHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cleotroph.asciicanvas;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame recycling of the screen buffer: clearing, retaining a frame with syncBuffer and the buffer swap on publish.
+ * The presenter thread is never started, so every operation runs on the benchmark thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class BufferBenchmark {
+    @Param({"80x25", "240x68", "1024x1024"})
+    public String grid;
+
+    private ASCIICanvasManager.ScreenBuffer buffer;
+
+    // fully drawn frame, copied in to give clear and syncBuffer a frame where every chunk holds cells
+    private CellFrame full;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkSupport.grid(grid);
+        buffer = new ASCIICanvasManager.ScreenBuffer(size[0], size[1],
+                new BenchmarkSupport.NullBackend(size[0], size[1]));
+        full = new CellFrame(size[0], size[1]);
+        BenchmarkSupport.fill(full, 1);
+    }
+
+    // Swap of an untouched frame, the cost of the exchange alone
+    @Benchmark
+    public CellFrame publish() {
+        return buffer.publish(null);
+    }
+
+    // Clear of a frame that was never drawn to, every chunk is skipped
+    @Benchmark
+    public void clearEmpty() {
+        buffer.clear();
+    }
+
+    // Copying a full frame in, the baseline of clearFull
+    @Benchmark
+    public void copyFull() {
+        buffer.getWriteFrame().copyFrom(full);
+    }
+
+    // Copying a full frame in and clearing it, subtract copyFull for the cost of the clear
+    @Benchmark
+    public void clearFull() {
+        buffer.getWriteFrame().copyFrom(full);
+        buffer.clear();
+    }
+
+    // Publishing a full frame with syncBuffer, the next write frame starts as a copy of it
+    @Benchmark
+    public CellFrame syncBufferPublish() {
+        buffer.getWriteFrame().copyFrom(full);
+        buffer.syncBuffer();
+        return buffer.publish(null);
+    }
+}
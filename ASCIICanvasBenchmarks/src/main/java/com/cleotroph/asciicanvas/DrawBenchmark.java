@@ -0,0 +1,99 @@
+package com.cleotroph.asciicanvas;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draw primitives of {@link ASCIICanvas} at several grid sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DrawBenchmark {
+    @Param({"80x25", "240x68", "1024x1024"})
+    public String grid;
+
+    private ASCIICanvas canvas;
+    private int width, height;
+
+    // walks the grid so successive points land in different cells and chunks
+    private int step;
+
+    // one row of text and a 16x16 sprite with a quarter of its cells transparent
+    private String text;
+    private char[] spriteGlyphs;
+    private int[] spriteColors;
+
+    @Setup
+    public void setup() {
+        int[] size = BenchmarkSupport.grid(grid);
+        width = size[0];
+        height = size[1];
+        canvas = new BenchmarkSupport.Canvas(width, height);
+        canvas.setColor(1);
+        canvas.setBrush('#');
+
+        StringBuilder row = new StringBuilder();
+        for (int x = 0; x < width; x++) {
+            row.append((char) ('a' + x % 26));
+        }
+        text = row.toString();
+        spriteGlyphs = new char[16 * 16];
+        spriteColors = new int[16 * 16];
+        for (int i = 0; i < spriteGlyphs.length; i++) {
+            spriteGlyphs[i] = i % 4 == 0 ? '.' : (char) ('A' + i % 26);
+            spriteColors[i] = i % 16;
+        }
+    }
+
+    private int next() {
+        step = (step + 7919) % (width * height);
+        return step;
+    }
+
+    @Benchmark
+    public void point() {
+        int p = next();
+        canvas.point(p % width, p / width);
+    }
+
+    @Benchmark
+    public void horizontalLine() {
+        canvas.line(0, next() % height, width, false);
+    }
+
+    @Benchmark
+    public void verticalLine() {
+        canvas.line(next() % width, 0, height, true);
+    }
+
+    @Benchmark
+    public void rectOutline() {
+        canvas.rect(0, 0, width, height, false);
+    }
+
+    @Benchmark
+    public void rectFilled() {
+        canvas.rect(0, 0, width, height, true);
+    }
+
+    @Benchmark
+    public void drawString() {
+        canvas.drawString(text, 0, next() % height);
+    }
+
+    @Benchmark
+    public void drawSprite() {
+        int p = next();
+        canvas.drawSprite(p % width - 8, p / width - 8, 16, 16, spriteGlyphs, spriteColors, '.');
+    }
+
+    @Benchmark
+    public void drawPerimeter() {
+        canvas.drawPerimeter(0, 0, width, height);
+    }
+}
@@ -0,0 +1,59 @@
+package com.cleotroph.asciicanvas;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole frame going through the screen buffer into an offscreen image: one row changes, the frame is published and
+ * rendered. Sampled so the results include frame time percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class PresentBenchmark {
+    @Param({"80x25", "240x68"})
+    public String grid;
+
+    @Param({"16"})
+    public int size;
+
+    // "software" blits glyph masks into the pixels, "atlas" draws glyph tiles through Graphics
+    @Param({"software", "atlas"})
+    public String blitter;
+
+    // "damage" repaints only changed cells, "full" repaints every cell
+    @Param({"damage", "full"})
+    public String repaint;
+
+    private ASCIICanvasManager.ScreenBuffer buffer;
+    private final Random random = new Random(2);
+    private int row;
+
+    @Setup
+    public void setup() {
+        int[] cells = BenchmarkSupport.grid(grid);
+        ImageBackend backend = new ImageBackend(cells[0], cells[1], size);
+        backend.getRasterizer().setSoftwareBlitting(blitter.equals("software"));
+        backend.getRasterizer().setDamageTracking(repaint.equals("damage"));
+        buffer = new ASCIICanvasManager.ScreenBuffer(cells[0], cells[1], backend);
+        BenchmarkSupport.fill(buffer.getWriteFrame(), 1);
+        buffer.syncBuffer();
+        buffer.publish(null);
+        buffer.Render();
+    }
+
+    @Benchmark
+    public void frame() {
+        CellFrame frame = buffer.getWriteFrame();
+        BenchmarkSupport.fillRow(frame, row, random);
+        row = (row + 1) % frame.height;
+        buffer.syncBuffer();
+        buffer.publish(null);
+        buffer.Render();
+    }
+}